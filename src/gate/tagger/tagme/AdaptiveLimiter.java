@@ -0,0 +1,250 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.util.GateRuntimeException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import javax.management.ObjectName;
+import org.apache.log4j.Logger;
+
+/**
+ * Limits the number of requests in flight to a service and adapts that 
+ * limit and the size of requests to the observed latency. 
+ * 
+ * This is an AIMD limiter: as long as the smoothed latency ratio stays 
+ * close to 1, the limit is increased by about one per round trip and the
+ * size factor a little. If the ratio rises above the tolerance, both are 
+ * decreased a little, if the service signals overload (429, 5xx or I/O 
+ * error), both are halved, at most once per round trip. The limit only 
+ * grows while it is actually used, so it stays near the capacity which 
+ * is really needed. 
+ * <p>
+ * The latency ratio of a request is its latency divided by the baseline 
+ * latency for requests of about the same size: the minimum latency seen for
+ * requests in the same size bucket (sizes within a factor of about 1.2). 
+ * So long and short texts are not mistaken for a loaded service. The 
+ * baselines only go down with each request, they are not raised by requests
+ * which are slow because of the load we cause. Every BASELINE_WINDOW 
+ * requests, PROBE_REQUESTS requests are sent one at a time: if they are 
+ * slower than their baselines, all baselines are raised by that factor,
+ * so they follow the service if it really gets slower. 
+ * <p>
+ * The size factor is at most 1.0: it only makes requests smaller than 
+ * their configured maximum size, never larger.
+ * <p>
+ * There is one limiter per service host, shared by all PRs which use it,
+ * and its state is registered as an MXBean with the object name
+ * gate.tagger.tagme:type=AdaptiveLimiter,name=&lt;host&gt;.
+ */
+public class AdaptiveLimiter implements AdaptiveLimiterMXBean {
+  
+  static final Logger logger = Logger.getLogger(AdaptiveLimiter.class);
+  
+  protected static final double MIN_LIMIT = 1.0;
+  protected static final double MAX_LIMIT = 1000.0;
+  protected static final double MIN_SIZE_FACTOR = 0.1;
+  protected static final double SIZE_INCREASE = 0.02;
+  protected static final double LATENCY_TOLERANCE = 2.0;
+  protected static final double BACKOFF = 0.9;
+  protected static final double OVERLOAD_BACKOFF = 0.5;
+  protected static final double SMOOTHING = 0.2;
+  protected static final int BASELINE_WINDOW = 500;
+  protected static final int PROBE_REQUESTS = 3;
+  protected static final int SIZE_BUCKETS_PER_DOUBLING = 4;
+  protected static final int SIZE_BUCKETS = 128;
+  
+  protected final String name;
+  protected double limit = MIN_LIMIT;
+  protected double sizeFactor = 1.0;
+  protected int inFlight = 0;
+  protected double latencyMs = 0.0;
+  protected double latencyRatio = 1.0;
+  // minimum latency for each size bucket, 0.0 if none seen yet
+  protected final double[] baselineMs = new double[SIZE_BUCKETS];
+  protected int windowRequests = 0;
+  // true while the baselines are measured again
+  protected boolean probing = false;
+  protected int probeSamples = 0;
+  protected double probeMinRatio = 0.0;
+  protected long requests = 0;
+  protected long overloads = 0;
+  protected long recoveryUntil = 0;
+  
+  private static final Map<String,AdaptiveLimiter> instances = new HashMap<String,AdaptiveLimiter>();
+  
+  /** Return the limiter for the host of the service URL. */
+  public static AdaptiveLimiter getInstance(URL serviceUrl) {
+    String name = serviceUrl.getProtocol()+"://"+serviceUrl.getAuthority();
+    synchronized(instances) {
+      AdaptiveLimiter limiter = instances.get(name);
+      if(limiter == null) {
+        limiter = new AdaptiveLimiter(name);
+        instances.put(name, limiter);
+        try {
+          ManagementFactory.getPlatformMBeanServer().registerMBean(limiter, 
+                  new ObjectName("gate.tagger.tagme:type=AdaptiveLimiter,name="+ObjectName.quote(name)));
+        } catch (Exception ex) {
+          logger.warn("Could not register the limiter MXBean for "+name, ex);
+        }
+      }
+      return limiter;
+    }
+  }
+  
+  public AdaptiveLimiter(String name) {
+    this.name = name;
+  }
+  
+  /** Wait until another request may be sent. */
+  public synchronized void acquire() {
+    while(inFlight >= (probing ? 1 : (int)limit)) {
+      try {
+        wait();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new GateRuntimeException("Interrupted while waiting to send a request to "+name, ex);
+      }
+    }
+    inFlight++;
+  }
+  
+  /** 
+   * Record the outcome of a request sent after acquire and let the 
+   * next request go. The size is the number of characters sent, used to
+   * compare the latency with that of requests of about the same size.
+   */
+  public synchronized void release(long nanos, int size, boolean overload) {
+    int wasInFlight = inFlight;
+    inFlight--;
+    requests++;
+    double ms = nanos / 1e6;
+    double ratio = 1.0;
+    if(!overload) {
+      if(latencyMs == 0.0) {
+        latencyMs = ms;
+      }
+      latencyMs += SMOOTHING * (ms - latencyMs);
+      int bucket = sizeBucket(size);
+      if(baselineMs[bucket] > 0.0) {
+        ratio = ms / baselineMs[bucket];
+      }
+      if(!probing) {
+        latencyRatio += SMOOTHING * (ratio - latencyRatio);
+      }
+      if(baselineMs[bucket] == 0.0 || ms < baselineMs[bucket]) {
+        baselineMs[bucket] = ms;
+      }
+    } else {
+      overloads++;
+    }
+    if(probing) {
+      // only requests which were alone in flight measure the baselines, 
+      // the limit is not changed until that is done
+      if(wasInFlight == 1 && !overload) {
+        probeMinRatio = probeSamples == 0 ? ratio : Math.min(probeMinRatio, ratio);
+        if(++probeSamples >= PROBE_REQUESTS) {
+          if(probeMinRatio > 1.0) {
+            for(int i = 0; i < SIZE_BUCKETS; i++) {
+              baselineMs[i] *= probeMinRatio;
+            }
+            logger.debug(name+": baselines raised by "+probeMinRatio);
+          }
+          latencyRatio = 1.0;
+          probing = false;
+        }
+      }
+      notifyAll();
+      return;
+    }
+    if(++windowRequests >= BASELINE_WINDOW) {
+      windowRequests = 0;
+      probing = true;
+      probeSamples = 0;
+    }
+    // decrease at most once per round trip: the requests which were already 
+    // in flight when we decreased do not tell us anything new
+    boolean congested = overload || latencyRatio > LATENCY_TOLERANCE;
+    if(congested) {
+      if(requests > recoveryUntil) {
+        double factor = overload ? OVERLOAD_BACKOFF : BACKOFF;
+        limit = Math.max(MIN_LIMIT, limit * factor);
+        sizeFactor = Math.max(MIN_SIZE_FACTOR, sizeFactor * factor);
+        recoveryUntil = requests + wasInFlight;
+        logger.debug(name+": "+(overload ? "overload" : "latency ratio "+latencyRatio)+", limit now "+limit);
+      }
+    } else if(wasInFlight >= (int)limit) {
+      limit = Math.min(MAX_LIMIT, limit + 1.0 / limit);
+      sizeFactor = Math.min(1.0, sizeFactor + SIZE_INCREASE / limit);
+    }
+    notifyAll();
+  }
+  
+  protected static int sizeBucket(int size) {
+    int bucket = (int)(SIZE_BUCKETS_PER_DOUBLING * Math.log(Math.max(1, size)) / Math.log(2));
+    return Math.min(SIZE_BUCKETS - 1, bucket);
+  }
+  
+  @Override
+  public synchronized double getLimit() {
+    return limit;
+  }
+
+  @Override
+  public synchronized int getInFlight() {
+    return inFlight;
+  }
+
+  @Override
+  public synchronized double getSizeFactor() {
+    return sizeFactor;
+  }
+
+  @Override
+  public synchronized double getLatencyMs() {
+    return latencyMs;
+  }
+
+  @Override
+  public synchronized double getLatencyRatio() {
+    return latencyRatio;
+  }
+
+  @Override
+  public synchronized long getRequests() {
+    return requests;
+  }
+
+  @Override
+  public synchronized long getOverloads() {
+    return overloads;
+  }
+  
+  @Override
+  public synchronized String toString() {
+    return String.format("AdaptiveLimiter(%s: limit=%.1f, sizeFactor=%.2f, latencyMs=%.1f, latencyRatio=%.2f, requests=%d, overloads=%d)",
+            name, limit, sizeFactor, latencyMs, latencyRatio, requests, overloads);
+  }
+  
+}
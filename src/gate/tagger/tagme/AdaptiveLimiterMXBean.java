@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+/**
+ * Metrics of an {@link AdaptiveLimiter}, available through JMX.
+ */
+public interface AdaptiveLimiterMXBean {
+  
+  /** Current maximum number of requests in flight. */
+  public double getLimit();
+  
+  /** Number of requests currently in flight. */
+  public int getInFlight();
+  
+  /** Current factor (0.1 to 1.0) for the maximum text size of a request. */
+  public double getSizeFactor();
+  
+  /** Smoothed latency of recent requests in milliseconds. */
+  public double getLatencyMs();
+  
+  /** 
+   * Smoothed ratio of the latency of recent requests to the latency of 
+   * requests of the same size when the service is not loaded.
+   */
+  public double getLatencyRatio();
+  
+  public long getRequests();
+  
+  /** Number of requests which failed with 429, 5xx or an I/O error. */
+  public long getOverloads();
+  
+}
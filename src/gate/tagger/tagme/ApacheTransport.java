@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.util.GateRuntimeException;
+import java.net.URI;
+import java.util.List;
+import org.apache.http.Consts;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.fluent.Content;
+import org.apache.http.client.fluent.Request;
+import org.apache.http.client.fluent.Response;
+import org.apache.log4j.Logger;
+
+/**
+ * Transport using the Apache HttpClient fluent API, HTTP/1.1 only.
+ */
+public class ApacheTransport implements ServiceTransport {
+  
+  static final Logger logger = Logger.getLogger(ApacheTransport.class);
+  
+  private static final ApacheTransport INSTANCE = new ApacheTransport();
+  
+  public static ApacheTransport getInstance() {
+    return INSTANCE;
+  }
+  
+  @Override
+  public String post(URI uri, List<NameValuePair> form) {
+    Request req = Request.Post(uri);
+    req.addHeader("Content-Type","application/x-www-form-urlencoded");
+    req.bodyForm(form, Consts.UTF_8);
+    return execute(req);
+  }
+  
+  @Override
+  public String get(URI uri) {
+    return execute(Request.Get(uri));
+  }
+  
+  protected String execute(Request req) {
+    logger.debug("Request is "+req);
+    Response res = null;
+    try {
+      res = req.execute();
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Problem executing HTTP request: "+req,ex);
+    } 
+    Content cont = null;
+    try {
+      cont = res.returnContent();
+    } catch (Exception ex) {
+      throw new GateRuntimeException("Problem getting HTTP response content: "+res,ex);
+    } 
+    return cont.asString();
+  }
+  
+}
@@ -0,0 +1,634 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Document;
+import gate.Factory;
+import gate.Gate;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import org.apache.log4j.Logger;
+
+/**
+ * Command line program to run the TagMe or WAT tagger on many texts 
+ * without a GATE application.
+ * 
+ * The input is either a directory or a JSONL file (or "-" for standard
+ * input). For a directory, each file ending in ".xml" is loaded as a GATE 
+ * document, all other files are read as UTF-8 plain text. For a JSONL file, 
+ * each line must be a JSON object with a "text" field and optionally an "id"
+ * field. The texts are sent to the service using the same code as the 
+ * PRs, with up to the given number of requests in flight at the same time.
+ * <p>
+ * For each input document, one JSON line is written to the output as 
+ * soon as the document is finished, with the fields "id", "annotations" 
+ * (list of objects with "type", "start", "end", "features") and "millis", 
+ * or "id" and "error" if something went wrong, e.g. if a JSONL line could 
+ * not be parsed or has no text. If a document fails without a record being
+ * written, the run stops and the exit status is 1. At the end, throughput and latency statistics are written to standard error.
+ */
+public class BatchTagger {
+  
+  static final Logger logger = Logger.getLogger(BatchTagger.class);
+  
+  protected TextTagger tagger = null;
+  protected int concurrency = 4;
+  protected String containingType = "";
+  protected String inputASName = "";
+  protected String outputType = "Lookup";
+  protected PhaseTracer tracer = null;
+  protected double traceSampleRate = 1.0;
+  
+  protected Writer out = null;
+  protected ObjectMapper mapper = new ObjectMapper();
+  protected Stats stats = new Stats();
+  // the first error which stopped the processing of a document without
+  // a record being written, e.g. because the output could not be written
+  protected volatile Throwable failure = null;
+  
+  public static void main(String[] args) {
+    String taggerName = "tagme";
+    String url = null;
+    String apiKey = System.getenv("GCUBE_TOKEN");
+    String lang = "en";
+    boolean isTweet = false;
+    Double epsilon = null;
+    Integer longText = null;
+    Double minRho = null;
+    String inPath = null;
+    String outPath = "-";
+    TransportType transport = TransportType.HTTP1;
+    String idMap = null;
+    boolean adaptive = false;
+    Integer maxGetUrl = null;
+    int minLetters = 0;
+    double maxNonLetters = 1.0;
+    boolean checkScript = false;
+    String traceFile = null;
+    BatchTagger bt = new BatchTagger();
+    URL serviceUrl = null;
+    SpanTriage triage = null;
+    
+    int i = 0;
+    try {
+      while(i < args.length) {
+        String arg = args[i];
+        if(arg.equals("-tagger")) {
+          taggerName = args[++i];
+        } else if(arg.equals("-url")) {
+          url = args[++i];
+        } else if(arg.equals("-key")) {
+          apiKey = args[++i];
+        } else if(arg.equals("-lang")) {
+          lang = args[++i];
+        } else if(arg.equals("-tweet")) {
+          isTweet = true;
+        } else if(arg.equals("-epsilon")) {
+          epsilon = Double.valueOf(args[++i]);
+        } else if(arg.equals("-longtext")) {
+          longText = Integer.valueOf(args[++i]);
+        } else if(arg.equals("-minrho")) {
+          minRho = Double.valueOf(args[++i]);
+        } else if(arg.equals("-transport")) {
+          transport = TransportType.valueOf(args[++i].toUpperCase());
+        } else if(arg.equals("-idmap")) {
+          idMap = args[++i];
+        } else if(arg.equals("-minletters")) {
+          minLetters = Integer.valueOf(args[++i]);
+        } else if(arg.equals("-maxnonletters")) {
+          maxNonLetters = Double.valueOf(args[++i]);
+        } else if(arg.equals("-checkscript")) {
+          checkScript = true;
+        } else if(arg.equals("-trace")) {
+          traceFile = args[++i];
+        } else if(arg.equals("-tracesample")) {
+          bt.traceSampleRate = Double.parseDouble(args[++i]);
+        } else if(arg.equals("-maxgeturl")) {
+          maxGetUrl = Integer.valueOf(args[++i]);
+        } else if(arg.equals("-adaptive")) {
+          adaptive = true;
+        } else if(arg.equals("-concurrency")) {
+          bt.concurrency = Integer.parseInt(args[++i]);
+        } else if(arg.equals("-containing")) {
+          bt.containingType = args[++i];
+        } else if(arg.equals("-inputas")) {
+          bt.inputASName = args[++i];
+        } else if(arg.equals("-outtype")) {
+          bt.outputType = args[++i];
+        } else if(arg.equals("-out")) {
+          outPath = args[++i];
+        } else if(arg.startsWith("-") && !arg.equals("-")) {
+          usage("Unknown option: "+arg);
+        } else if(inPath == null) {
+          inPath = arg;
+        } else {
+          usage("Only one input can be specified");
+        }
+        i++;
+      }
+    } catch (ArrayIndexOutOfBoundsException ex) {
+      usage("Missing value for option "+args[i-1]);
+    } catch (IllegalArgumentException ex) {
+      usage("Not a valid value for option "+args[i-1]+": "+ex.getMessage());
+    }
+    if(inPath == null) {
+      usage("No input specified");
+    }
+    if(bt.concurrency < 1) {
+      usage("Concurrency must be at least 1");
+    }
+    
+    try {
+      if(taggerName.equals("tagme")) {
+        TaggerTagMeWS pr = new TaggerTagMeWS();
+        pr.setTagMeServiceUrl(new URL(url == null ? "https://tagme.d4science.org/tagme/tag" : url));
+        pr.setIsTweet(isTweet);
+        if(epsilon != null) { pr.setEpsilon(epsilon); }
+        if(longText != null) { pr.setLongText(longText); }
+        if(minRho != null) { pr.setMinRho(minRho); }
+        pr.setApiKey(apiKey == null ? "" : apiKey);
+        pr.setLanguageCode(lang);
+        pr.setTransport(transport);
+        pr.setPageIdUriMapUrl(idMap == null ? null : new File(idMap).toURI().toURL());
+        pr.setAdaptiveConcurrency(adaptive);
+        pr.setTriageMinLetters(minLetters);
+        pr.setTriageMaxNonLetterRatio(maxNonLetters);
+        pr.setTriageCheckScript(checkScript);
+        serviceUrl = pr.getTagMeServiceUrl();
+        triage = pr.getSpanTriage();
+        bt.tagger = pr;
+      } else if(taggerName.equals("wat")) {
+        TaggerWatWS pr = new TaggerWatWS();
+        pr.setTagMeServiceUrl(new URL(url == null ? "https://wat.d4science.org/wat/tag/tag" : url));
+        if(maxGetUrl != null) { pr.setMaxGetUrlLength(maxGetUrl); }
+        if(minRho != null) { pr.setMinRho(minRho); }
+        pr.setApiKey(apiKey == null ? "" : apiKey);
+        pr.setLanguageCode(lang);
+        pr.setTransport(transport);
+        pr.setPageIdUriMapUrl(idMap == null ? null : new File(idMap).toURI().toURL());
+        pr.setAdaptiveConcurrency(adaptive);
+        pr.setTriageMinLetters(minLetters);
+        pr.setTriageMaxNonLetterRatio(maxNonLetters);
+        pr.setTriageCheckScript(checkScript);
+        serviceUrl = pr.getTagMeServiceUrl();
+        triage = pr.getSpanTriage();
+        bt.tagger = pr;
+      } else {
+        usage("Tagger must be tagme or wat, not "+taggerName);
+      }
+      
+      if(traceFile != null) {
+        bt.tracer = PhaseTracer.getInstance(new File(traceFile).toURI().toURL());
+      }
+      InputSource input;
+      File inFile = new File(inPath);
+      if(inFile.isDirectory()) {
+        input = bt.new DirectoryInput(inFile);
+      } else if(inPath.equals("-")) {
+        input = new JsonlInput(System.in);
+      } else {
+        input = new JsonlInput(new FileInputStream(inFile));
+      }
+      if(outPath.equals("-")) {
+        bt.out = new BufferedWriter(new OutputStreamWriter(System.out, "UTF-8"));
+      } else {
+        bt.out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(outPath), "UTF-8"));
+      }
+      bt.run(input);
+      input.close();
+      bt.out.close();
+      if(bt.tracer != null) {
+        bt.tracer.release();
+      }
+    } catch (Exception ex) {
+      System.err.println("Error running the batch tagger: "+ex.getMessage());
+      ex.printStackTrace(System.err);
+      System.exit(1);
+    }
+    System.err.println(bt.stats.report());
+    System.err.println(triage);
+    if(adaptive) {
+      System.err.println(AdaptiveLimiter.getInstance(serviceUrl));
+    }
+  }
+  
+  protected static void usage(String msg) {
+    System.err.println(msg);
+    System.err.println("Usage: BatchTagger [options] input");
+    System.err.println("  input: a directory, a JSONL file or - for JSONL from standard input");
+    System.err.println("  -tagger tagme|wat   the service to use, default tagme");
+    System.err.println("  -url URL            the service URL, default the d4science URL for the tagger");
+    System.err.println("  -key KEY            the service auth token, default from environment variable GCUBE_TOKEN");
+    System.err.println("  -lang CODE          language code, default en");
+    System.err.println("  -tweet              texts are tweets (tagme only)");
+    System.err.println("  -epsilon VALUE      epsilon (tagme only)");
+    System.err.println("  -longtext VALUE     long_text parameter (tagme only)");
+    System.err.println("  -maxgeturl N        use POST if the GET URL would be longer than N characters (wat only)");
+    System.err.println("  -minrho VALUE       minimum rho");
+    System.err.println("  -transport http1|http2  HTTP transport to use, default http1");
+    System.err.println("  -idmap FILE         page id to DBpedia URI map file created with PageIdUriMap");
+    System.err.println("  -minletters N       do not send texts with fewer letters");
+    System.err.println("  -maxnonletters R    do not send texts with a higher ratio of non-letters");
+    System.err.println("  -checkscript        do not send texts where most letters are not in the script of the language");
+    System.err.println("  -concurrency N      maximum number of requests in flight, default 4");
+    System.err.println("  -containing TYPE    for GATE documents, only annotate the text covered by these annotations");
+    System.err.println("  -inputas NAME       for GATE documents, the set containing the containing annotations");
+    System.err.println("  -outtype TYPE       type to use in the output annotations, default Lookup");
+    System.err.println("  -adaptive           adapt the number of requests in flight (up to -concurrency) to the service latency");
+    System.err.println("  -trace FILE         append a JSONL trace of the time spent in each phase per span to FILE");
+    System.err.println("  -tracesample R      fraction of documents to trace, default 1.0");
+    System.err.println("  -out FILE           output JSONL file, default - for standard output");
+    System.exit(1);
+  }
+  
+  /**
+   * Process all the items from the input source and write the results.
+   * The items are read from the source one by one and only as long as 
+   * there are fewer than concurrency items being processed, so memory use 
+   * does not depend on the size of the input.
+   * If a document fails in a way which could not be recorded in the output,
+   * no more documents are started and an exception is thrown once the 
+   * documents in flight are finished.
+   */
+  public void run(InputSource input) throws IOException, InterruptedException {
+    ExecutorService pool = Executors.newFixedThreadPool(concurrency);
+    Semaphore inFlight = new Semaphore(concurrency);
+    stats.start();
+    try {
+      WorkItem item;
+      while(failure == null && (item = input.next()) != null) {
+        inFlight.acquire();
+        pool.execute(new Task(item, inFlight));
+      }
+    } finally {
+      pool.shutdown();
+      pool.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+      stats.stop();
+      out.flush();
+    }
+    if(failure != null) {
+      throw new IOException("Stopped after a document failed: "+failure.getMessage(), failure);
+    }
+  }
+  
+  protected class Task implements Runnable {
+    WorkItem item;
+    Semaphore inFlight;
+    Task(WorkItem item, Semaphore inFlight) {
+      this.item = item;
+      this.inFlight = inFlight;
+    }
+    @Override
+    public void run() {
+      try {
+        process(item);
+      } catch (Throwable ex) {
+        logger.error("Could not process "+item.id, ex);
+        if(failure == null) {
+          failure = ex;
+        }
+      } finally {
+        inFlight.release();
+      }
+    }
+  }
+  
+  protected void process(WorkItem item) {
+    long startTime = System.nanoTime();
+    Map<String,Object> record = new LinkedHashMap<String,Object>();
+    record.put("id", item.id);
+    List<Map<String,Object>> anns = new ArrayList<Map<String,Object>>();
+    boolean error = false;
+    int nrChars = 0;
+    boolean traced = tracer != null && tracer.sample(traceSampleRate);
+    try {
+      if(item.error != null) {
+        throw new IOException(item.error);
+      }
+      for(long[] span : item.spans) {
+        SpanTrace trace = traced ? new SpanTrace(item.id, span[0], span[1]) : null;
+        List<Mention> mentions;
+        SpanTrace.setCurrent(trace);
+        try {
+          long t = System.nanoTime();
+          String text = item.text.substring((int)span[0], (int)span[1]);
+          SpanTrace.addCurrent(SpanTrace.Phase.EXTRACT, t);
+          nrChars += text.length();
+          mentions = tagger.tagText(text, span[0]);
+        } catch (RuntimeException ex) {
+          if(trace != null) {
+            trace.error = ex.getMessage();
+            tracer.write(trace);
+          }
+          throw ex;
+        } finally {
+          SpanTrace.setCurrent(null);
+        }
+        if(trace != null) {
+          trace.annotations = mentions.size();
+          tracer.write(trace);
+        }
+        for(Mention mention : mentions) {
+          Map<String,Object> ann = new LinkedHashMap<String,Object>();
+          ann.put("type", outputType);
+          ann.put("start", mention.start);
+          ann.put("end", mention.end);
+          ann.put("features", mention.features);
+          anns.add(ann);
+        }
+      }
+      record.put("annotations", anns);
+    } catch (Exception ex) {
+      logger.debug("Error processing "+item.id, ex);
+      record.put("error", ex.getMessage());
+      error = true;
+    }
+    long nanos = System.nanoTime()-startTime;
+    record.put("millis", nanos / 1000000L);
+    write(record);
+    stats.add(nanos, item.spans.size(), anns.size(), nrChars, error);
+  }
+  
+  protected void write(Map<String,Object> record) {
+    try {
+      String line = mapper.writeValueAsString(record);
+      synchronized(out) {
+        out.write(line);
+        out.write("\n");
+      }
+    } catch (IOException ex) {
+      throw new RuntimeException("Could not write output record for "+record.get("id"),ex);
+    }
+  }
+  
+  /**
+   * A document to process: the full text and the spans to annotate.
+   */
+  protected static class WorkItem {
+    String id;
+    String text;
+    List<long[]> spans;
+    // set if the input for the item could not be read
+    String error = null;
+    WorkItem(String id, String text, List<long[]> spans) {
+      this.id = id;
+      this.text = text;
+      this.spans = spans;
+    }
+    WorkItem(String id, String text) {
+      this(id, text, new ArrayList<long[]>());
+      spans.add(new long[]{0, text.length()});
+    }
+    static WorkItem error(String id, String error) {
+      WorkItem item = new WorkItem(id, "", new ArrayList<long[]>());
+      item.error = error;
+      return item;
+    }
+  }
+  
+  protected static abstract class InputSource {
+    /** Return the next item or null if there are no more. */
+    abstract WorkItem next() throws IOException;
+    void close() throws IOException { }
+  }
+  
+  protected static class JsonlInput extends InputSource {
+    BufferedReader reader;
+    ObjectMapper mapper = new ObjectMapper();
+    long lineNr = 0;
+    JsonlInput(InputStream in) throws IOException {
+      reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+    }
+    @Override
+    WorkItem next() throws IOException {
+      String line;
+      while((line = reader.readLine()) != null) {
+        lineNr++;
+        if(line.trim().isEmpty()) {
+          continue;
+        }
+        // a line which cannot be used gets an error record, the other 
+        // lines are still processed
+        JsonNode node;
+        try {
+          node = mapper.readTree(line);
+        } catch (IOException ex) {
+          return WorkItem.error(String.valueOf(lineNr), "Could not parse JSON line "+lineNr+": "+ex.getMessage());
+        }
+        JsonNode id = node.get("id");
+        String idString = id == null ? String.valueOf(lineNr) : id.asText();
+        JsonNode text = node.get("text");
+        if(text == null || !text.isTextual()) {
+          return WorkItem.error(idString, "No text field in JSON line "+lineNr);
+        }
+        return new WorkItem(idString, text.asText());
+      }
+      return null;
+    }
+    @Override
+    void close() throws IOException {
+      reader.close();
+    }
+  }
+  
+  protected class DirectoryInput extends InputSource {
+    File[] files;
+    int next = 0;
+    DirectoryInput(File dir) {
+      files = dir.listFiles();
+      Arrays.sort(files);
+    }
+    @Override
+    WorkItem next() throws IOException {
+      while(next < files.length) {
+        File file = files[next++];
+        if(!file.isFile()) {
+          continue;
+        }
+        // a file which cannot be read gets an error record, the other 
+        // files are still processed
+        try {
+          if(file.getName().endsWith(".xml")) {
+            return readGateDocument(file);
+          } else {
+            return new WorkItem(file.getName(), readFile(file));
+          }
+        } catch (IOException | RuntimeException ex) {
+          logger.debug("Could not read "+file, ex);
+          return WorkItem.error(file.getName(), ex.getMessage());
+        }
+      }
+      return null;
+    }
+  }
+  
+  protected static String readFile(File file) throws IOException {
+    StringBuilder sb = new StringBuilder();
+    Reader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+    try {
+      char[] buf = new char[8192];
+      int n;
+      while((n = reader.read(buf)) != -1) {
+        sb.append(buf, 0, n);
+      }
+    } finally {
+      reader.close();
+    }
+    return sb.toString();
+  }
+  
+  // Load a GATE document and get the text and spans to annotate from it, 
+  // the document itself is not kept.
+  protected WorkItem readGateDocument(File file) throws IOException {
+    Document doc;
+    try {
+      if(!Gate.isInitialised()) {
+        Gate.init();
+      }
+      doc = Factory.newDocument(file.toURI().toURL(), "UTF-8");
+    } catch (Exception ex) {
+      throw new IOException("Could not load GATE document "+file+": "+ex.getMessage(), ex);
+    }
+    try {
+      String text = doc.getContent().toString();
+      if(containingType == null || containingType.isEmpty()) {
+        return new WorkItem(file.getName(), text);
+      }
+      AnnotationSet inputAS = (inputASName == null || inputASName.isEmpty()) 
+              ? doc.getAnnotations() : doc.getAnnotations(inputASName);
+      List<long[]> spans = new ArrayList<long[]>();
+      for(Annotation ann : inputAS.get(containingType)) {
+        spans.add(new long[]{gate.Utils.start(ann), gate.Utils.end(ann)});
+      }
+      return new WorkItem(file.getName(), text, spans);
+    } finally {
+      Factory.deleteResource(doc);
+    }
+  }
+  
+  /**
+   * Throughput and latency statistics, latencies are per document. The
+   * latencies are counted in a histogram with log-spaced buckets, so the
+   * memory used does not depend on the number of documents and the
+   * percentiles are accurate to about 5%.
+   */
+  protected static class Stats {
+    // 16 buckets per doubling of the latency in microseconds, up to about 70 minutes
+    static final int BUCKETS_PER_DOUBLING = 16;
+    static final int NR_BUCKETS = 32 * BUCKETS_PER_DOUBLING;
+    long startTime = 0;
+    long endTime = 0;
+    long nrDocs = 0;
+    long nrErrors = 0;
+    long nrSpans = 0;
+    long nrAnns = 0;
+    long nrChars = 0;
+    long[] latencyCounts = new long[NR_BUCKETS];
+    long latencySum = 0;
+    long latencyMax = 0;
+    
+    void start() {
+      startTime = System.nanoTime();
+    }
+    
+    void stop() {
+      endTime = System.nanoTime();
+    }
+    
+    synchronized void add(long nanos, int spans, int anns, int chars, boolean error) {
+      latencyCounts[bucket(nanos)]++;
+      latencySum += nanos;
+      latencyMax = Math.max(latencyMax, nanos);
+      nrDocs++;
+      nrSpans += spans;
+      nrAnns += anns;
+      nrChars += chars;
+      if(error) {
+        nrErrors++;
+      }
+    }
+    
+    static int bucket(long nanos) {
+      double micros = Math.max(1.0, nanos / 1e3);
+      int bucket = (int)(BUCKETS_PER_DOUBLING * Math.log(micros) / Math.log(2));
+      return Math.min(NR_BUCKETS - 1, bucket);
+    }
+    
+    // the upper bound of the bucket in milliseconds
+    static double bucketMs(int bucket) {
+      return Math.pow(2, (bucket + 1) / (double)BUCKETS_PER_DOUBLING) / 1e3;
+    }
+    
+    synchronized String report() {
+      double secs = (endTime - startTime) / 1e9;
+      StringBuilder sb = new StringBuilder();
+      sb.append(String.format("Documents: %d, errors: %d, spans: %d, annotations: %d, characters: %d%n",
+              nrDocs, nrErrors, nrSpans, nrAnns, nrChars));
+      sb.append(String.format("Elapsed: %.3f s, docs/sec: %.2f, chars/sec: %.0f%n",
+              secs, secs > 0 ? nrDocs / secs : 0.0, secs > 0 ? nrChars / secs : 0.0));
+      if(nrDocs > 0) {
+        sb.append(String.format("Latency ms: mean %.1f, p50 %.1f, p90 %.1f, p99 %.1f, max %.1f",
+                latencySum / 1e6 / nrDocs, percentile(0.5), percentile(0.9),
+                percentile(0.99), latencyMax / 1e6));
+      }
+      return sb.toString();
+    }
+    
+    // the latency in milliseconds below which the fraction p of the 
+    // documents are, never more than the maximum
+    double percentile(double p) {
+      long rank = Math.max(1, (long)Math.ceil(p * nrDocs));
+      long seen = 0;
+      for(int i = 0; i < NR_BUCKETS; i++) {
+        seen += latencyCounts[i];
+        if(seen >= rank) {
+          return Math.min(bucketMs(i), latencyMax / 1e6);
+        }
+      }
+      return latencyMax / 1e6;
+    }
+  }
+  
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.util.GateRuntimeException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpResponseException;
+import org.apache.log4j.Logger;
+
+/**
+ * Transport using the JDK HttpClient with HTTP/2. 
+ * 
+ * All taggers share one client, so concurrent requests to the same service 
+ * are multiplexed over a few connections. If a server does not negotiate 
+ * HTTP/2, all further requests to that host use the {@link ApacheTransport}.
+ */
+public class Http2Transport implements ServiceTransport {
+  
+  static final Logger logger = Logger.getLogger(Http2Transport.class);
+  
+  private static final Http2Transport INSTANCE = new Http2Transport();
+  
+  public static Http2Transport getInstance() {
+    return INSTANCE;
+  }
+  
+  protected final HttpClient client = HttpClient.newBuilder()
+          .version(HttpClient.Version.HTTP_2)
+          .followRedirects(HttpClient.Redirect.NORMAL)
+          .build();
+  
+  // hosts (scheme://host:port) which did not negotiate HTTP/2
+  protected final Set<String> http1Hosts = ConcurrentHashMap.newKeySet();
+  
+  protected ServiceTransport fallback = ApacheTransport.getInstance();
+  
+  @Override
+  public String post(URI uri, List<NameValuePair> form) {
+    if(http1Hosts.contains(hostKey(uri))) {
+      return fallback.post(uri, form);
+    }
+    return await(postAsync(uri, form));
+  }
+  
+  @Override
+  public String get(URI uri) {
+    if(http1Hosts.contains(hostKey(uri))) {
+      return fallback.get(uri);
+    }
+    return await(getAsync(uri));
+  }
+  
+  /** Send the form as a POST request without waiting for the response. */
+  public CompletableFuture<String> postAsync(URI uri, List<NameValuePair> form) {
+    HttpRequest req = HttpRequest.newBuilder(uri)
+            .header("Content-Type", "application/x-www-form-urlencoded")
+            .POST(HttpRequest.BodyPublishers.ofString(encodeForm(form), StandardCharsets.UTF_8))
+            .build();
+    return sendAsync(req);
+  }
+  
+  /** Send a GET request without waiting for the response. */
+  public CompletableFuture<String> getAsync(URI uri) {
+    return sendAsync(HttpRequest.newBuilder(uri).GET().build());
+  }
+  
+  protected CompletableFuture<String> sendAsync(final HttpRequest req) {
+    logger.debug("Request is "+req);
+    return client.sendAsync(req, HttpResponse.BodyHandlers.ofString())
+            .thenApply(res -> {
+              if(res.version() != HttpClient.Version.HTTP_2 && http1Hosts.add(hostKey(req.uri()))) {
+                logger.info("HTTP/2 not negotiated with "+hostKey(req.uri())+", using HTTP/1.1 client from now on");
+              }
+              if(res.statusCode() >= 300) {
+                throw new GateRuntimeException("Problem getting HTTP response content: "+res,
+                        new HttpResponseException(res.statusCode(), "HTTP status "+res.statusCode()));
+              }
+              return res.body();
+            });
+  }
+  
+  protected String await(CompletableFuture<String> future) {
+    try {
+      return future.join();
+    } catch (CompletionException ex) {
+      if(ex.getCause() instanceof GateRuntimeException) {
+        throw (GateRuntimeException)ex.getCause();
+      }
+      throw new GateRuntimeException("Problem executing HTTP request", ex.getCause());
+    }
+  }
+  
+  protected static String hostKey(URI uri) {
+    return uri.getScheme()+"://"+uri.getHost()+":"+uri.getPort();
+  }
+  
+  protected static String encodeForm(List<NameValuePair> form) {
+    StringBuilder sb = new StringBuilder();
+    for(NameValuePair nvp : form) {
+      if(sb.length() > 0) {
+        sb.append('&');
+      }
+      sb.append(URLEncoder.encode(nvp.getName(), StandardCharsets.UTF_8));
+      sb.append('=');
+      sb.append(URLEncoder.encode(nvp.getValue() == null ? "" : nvp.getValue(), StandardCharsets.UTF_8));
+    }
+    return sb.toString();
+  }
+  
+}
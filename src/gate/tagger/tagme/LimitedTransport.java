@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import java.io.IOException;
+import java.net.URI;
+import java.util.List;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Transport which sends requests through another transport, but only 
+ * as many at the same time as an {@link AdaptiveLimiter} allows and 
+ * reports the latency and overload errors to the limiter.
+ */
+public class LimitedTransport implements ServiceTransport {
+  
+  protected ServiceTransport transport;
+  protected AdaptiveLimiter limiter;
+  
+  public LimitedTransport(ServiceTransport transport, AdaptiveLimiter limiter) {
+    this.transport = transport;
+    this.limiter = limiter;
+  }
+
+  @Override
+  public String post(URI uri, List<NameValuePair> form) {
+    limiter.acquire();
+    long start = System.nanoTime();
+    boolean overload = false;
+    try {
+      return transport.post(uri, form);
+    } catch (RuntimeException ex) {
+      overload = isOverload(ex);
+      throw ex;
+    } finally {
+      limiter.release(System.nanoTime() - start, formSize(form), overload);
+    }
+  }
+
+  @Override
+  public String get(URI uri) {
+    limiter.acquire();
+    long start = System.nanoTime();
+    boolean overload = false;
+    try {
+      return transport.get(uri);
+    } catch (RuntimeException ex) {
+      overload = isOverload(ex);
+      throw ex;
+    } finally {
+      limiter.release(System.nanoTime() - start, uri.toString().length(), overload);
+    }
+  }
+  
+  // the number of characters of the names and values of the form
+  protected static int formSize(List<NameValuePair> form) {
+    int size = 0;
+    for(NameValuePair pair : form) {
+      size += pair.getName().length() + (pair.getValue() == null ? 0 : pair.getValue().length());
+    }
+    return size;
+  }
+  
+  // 429 (too many requests), server errors and I/O problems mean the 
+  // service is overloaded, other errors are our own problem
+  protected static boolean isOverload(Throwable ex) {
+    for(Throwable t = ex; t != null; t = t.getCause()) {
+      if(t instanceof HttpResponseException) {
+        int status = ((HttpResponseException)t).getStatusCode();
+        return status == 429 || status >= 500;
+      }
+      if(t instanceof IOException) {
+        return true;
+      }
+    }
+    return false;
+  }
+  
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.FeatureMap;
+
+/**
+ * A mention found by one of the services: document offsets and the
+ * features to use for the annotation.
+ */
+public class Mention {
+  public long start = 0;
+  public long end = 0;
+  public FeatureMap features = null;
+  
+  public Mention(long start, long end, FeatureMap features) {
+    this.start = start;
+    this.end = end;
+    this.features = features;
+  }
+  
+  @Override
+  public String toString() {
+    return "Mention(start="+start+", end="+end+", features="+features+")";
+  }
+}
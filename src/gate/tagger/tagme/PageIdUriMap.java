@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.util.GateRuntimeException;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import org.apache.log4j.Logger;
+
+/**
+ * Read-only map from Wikipedia page id (the tagMeId) to DBpedia URI.
+ * 
+ * The map is stored in a binary file which is memory-mapped, so even 
+ * tens of millions of entries need hardly any heap and can be used right
+ * away. The file is created from a tab-separated file with the page id in
+ * the first and the DBpedia URI or resource name in the second column by 
+ * running the main method of this class:
+ * <pre>
+ * java -cp ... gate.tagger.tagme.PageIdUriMap pageids.tsv[.gz] pageids.bin
+ * </pre>
+ * The TSV file can be created from the DBpedia page id and redirect dumps,
+ * if a page id occurs more than once, the first entry is used.
+ * <p>
+ * File format (big endian): magic number, version, number of entries n, 
+ * size of the string pool, then n sorted page ids, n+1 offsets into the 
+ * string pool and the string pool with the UTF-8 encoded values.
+ */
+public class PageIdUriMap {
+  
+  static final Logger logger = Logger.getLogger(PageIdUriMap.class);
+  
+  public static final int MAGIC = 0x544d4944; // "TMID"
+  public static final int VERSION = 1;
+  public static final String DBPEDIA_PREFIX = "http://dbpedia.org/resource/";
+  
+  protected static final int HEADER_SIZE = 16;
+  
+  protected final int size;
+  protected final IntBuffer ids;
+  protected final IntBuffer offsets;
+  protected final ByteBuffer pool;
+  
+  // maps are shared between all PRs which use the same file
+  private static final Map<String,PageIdUriMap> instances = new HashMap<String,PageIdUriMap>();
+  
+  /**
+   * Return the map for the file at the given URL, which must be a file URL. 
+   * The file is only mapped once, no matter how many PRs use it.
+   */
+  public static PageIdUriMap getInstance(URL url) {
+    File file;
+    try {
+      file = new File(url.toURI());
+    } catch (Exception ex) {
+      throw new GateRuntimeException("The page id map must be a local file: "+url, ex);
+    }
+    synchronized(instances) {
+      String key = file.getAbsolutePath();
+      PageIdUriMap map = instances.get(key);
+      if(map == null) {
+        try {
+          map = new PageIdUriMap(file);
+        } catch (IOException ex) {
+          throw new GateRuntimeException("Could not load page id map "+file, ex);
+        }
+        instances.put(key, map);
+      }
+      return map;
+    }
+  }
+  
+  public PageIdUriMap(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+      if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+        throw new IOException("Not a page id map file or wrong version: "+file);
+      }
+      size = header.getInt(8);
+      int poolSize = header.getInt(12);
+      long pos = HEADER_SIZE;
+      ids = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * size).asIntBuffer();
+      pos += 4L * size;
+      offsets = channel.map(FileChannel.MapMode.READ_ONLY, pos, 4L * (size + 1)).asIntBuffer();
+      pos += 4L * (size + 1);
+      pool = channel.map(FileChannel.MapMode.READ_ONLY, pos, poolSize);
+    } finally {
+      // the mapped buffers stay valid after closing the file
+      raf.close();
+    }
+    logger.info("Mapped "+size+" page ids from "+file);
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Return the DBpedia URI for the page id or null if the id is not known.
+   */
+  public String get(int pageId) {
+    int lo = 0;
+    int hi = size - 1;
+    while(lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      int midId = ids.get(mid);
+      if(midId < pageId) {
+        lo = mid + 1;
+      } else if(midId > pageId) {
+        hi = mid - 1;
+      } else {
+        int start = offsets.get(mid);
+        byte[] bytes = new byte[offsets.get(mid + 1) - start];
+        ByteBuffer buf = pool.duplicate();
+        buf.position(start);
+        buf.get(bytes);
+        String value = new String(bytes, StandardCharsets.UTF_8);
+        return value.startsWith("http://") || value.startsWith("https://") ? value : DBPEDIA_PREFIX + value;
+      }
+    }
+    return null;
+  }
+  
+  /**
+   * Create a map file from a TSV file (optionally gzip compressed) with
+   * the page id in the first column and the DBpedia URI or resource name 
+   * in the second column.
+   */
+  public static void main(String[] args) throws IOException {
+    if(args.length != 2) {
+      System.err.println("Usage: PageIdUriMap infile.tsv[.gz] outfile");
+      System.exit(1);
+    }
+    InputStream in = new FileInputStream(args[0]);
+    if(args[0].endsWith(".gz")) {
+      in = new GZIPInputStream(in);
+    }
+    // keys contain the page id in the upper and the index of the value in 
+    // the lower 32 bits, so sorting them gives the order of the ids and keeps
+    // the first value for duplicate ids first.
+    long[] keys = new long[1 << 20];
+    List<byte[]> values = new ArrayList<byte[]>();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+    try {
+      String line;
+      long lineNr = 0;
+      while((line = reader.readLine()) != null) {
+        lineNr++;
+        String[] fields = line.split("\t");
+        if(fields.length < 2 || line.startsWith("#")) {
+          continue;
+        }
+        int id;
+        try {
+          id = Integer.parseInt(fields[0].trim());
+        } catch (NumberFormatException ex) {
+          System.err.println("Ignoring line "+lineNr+", not a page id: "+fields[0]);
+          continue;
+        }
+        String value = fields[1].trim();
+        if(value.startsWith(DBPEDIA_PREFIX)) {
+          value = value.substring(DBPEDIA_PREFIX.length());
+        }
+        if(values.size() == keys.length) {
+          keys = Arrays.copyOf(keys, keys.length * 2);
+        }
+        keys[values.size()] = ((long)id << 32) | values.size();
+        values.add(value.getBytes(StandardCharsets.UTF_8));
+      }
+    } finally {
+      reader.close();
+    }
+    keys = Arrays.copyOf(keys, values.size());
+    Arrays.sort(keys);
+    
+    int n = 0;
+    long poolSize = 0;
+    int lastId = 0;
+    for(int i = 0; i < keys.length; i++) {
+      int id = (int)(keys[i] >> 32);
+      if(i > 0 && id == lastId) {
+        continue;
+      }
+      keys[n++] = keys[i];
+      poolSize += values.get((int)keys[i]).length;
+      lastId = id;
+    }
+    if(poolSize > Integer.MAX_VALUE) {
+      throw new IOException("Too much data for a page id map: "+poolSize+" bytes");
+    }
+    
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(args[1]), 1 << 16));
+    try {
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      out.writeInt(n);
+      out.writeInt((int)poolSize);
+      for(int i = 0; i < n; i++) {
+        out.writeInt((int)(keys[i] >> 32));
+      }
+      int offset = 0;
+      for(int i = 0; i < n; i++) {
+        out.writeInt(offset);
+        offset += values.get((int)keys[i]).length;
+      }
+      out.writeInt(offset);
+      for(int i = 0; i < n; i++) {
+        out.write(values.get((int)keys[i]));
+      }
+    } finally {
+      out.close();
+    }
+    System.err.println("Wrote "+n+" page ids to "+args[1]);
+  }
+  
+}
@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import gate.util.GateRuntimeException;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.log4j.Logger;
+
+/**
+ * Writes span traces as JSON lines to a trace file.
+ * 
+ * Traces are handed to a background thread through a bounded queue, so 
+ * tracing never blocks processing: if the queue is full, the trace is 
+ * dropped and counted. Each line has the document name, the span offsets
+ * and length, the number of annotations, the time of each phase in 
+ * microseconds and the error message if tagging the span failed.
+ * <p>
+ * Each user of a tracer gets it with {@link #getInstance(URL)} and must 
+ * call {@link #release()} when done: the file is closed and the writer 
+ * thread stopped when the last user released it.
+ */
+public class PhaseTracer {
+  
+  static final Logger logger = Logger.getLogger(PhaseTracer.class);
+  
+  protected static final int QUEUE_SIZE = 10000;
+  
+  protected final File file;
+  protected final BlockingQueue<SpanTrace> queue = new ArrayBlockingQueue<SpanTrace>(QUEUE_SIZE);
+  protected final AtomicLong dropped = new AtomicLong();
+  protected final ObjectMapper mapper = new ObjectMapper();
+  protected final Writer out;
+  protected final Thread writer;
+  protected final Thread drainHook;
+  protected String key = null;
+  // number of users which got the tracer and did not release it yet
+  protected int users = 0;
+  
+  // tracers are shared between all PRs which use the same file
+  private static final Map<String,PhaseTracer> instances = new HashMap<String,PhaseTracer>();
+  
+  /** 
+   * Return the tracer for the file at the given URL, which must be a file 
+   * URL. Each call must be matched by a call of {@link #release()}.
+   */
+  public static PhaseTracer getInstance(URL url) {
+    File file;
+    try {
+      file = new File(url.toURI());
+    } catch (Exception ex) {
+      throw new GateRuntimeException("The trace file must be a local file: "+url, ex);
+    }
+    synchronized(instances) {
+      String key = file.getAbsolutePath();
+      PhaseTracer tracer = instances.get(key);
+      if(tracer == null) {
+        try {
+          tracer = new PhaseTracer(file);
+        } catch (IOException ex) {
+          throw new GateRuntimeException("Could not open trace file "+file, ex);
+        }
+        tracer.key = key;
+        instances.put(key, tracer);
+      }
+      tracer.users++;
+      return tracer;
+    }
+  }
+  
+  /** Create a tracer which appends to the file. */
+  public PhaseTracer(File file) throws IOException {
+    this.file = file;
+    out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), StandardCharsets.UTF_8));
+    writer = new Thread(this::writeTraces, "TagMe trace writer");
+    writer.setDaemon(true);
+    writer.start();
+    // in case the JVM exits before the tracer is released
+    drainHook = new Thread(this::drain, "TagMe trace drain");
+    Runtime.getRuntime().addShutdownHook(drainHook);
+  }
+  
+  /** 
+   * Release the tracer got with {@link #getInstance(URL)}. When the last
+   * user released it, the queued traces are written and the file closed.
+   */
+  public void release() {
+    synchronized(instances) {
+      if(--users > 0) {
+        return;
+      }
+      if(key != null) {
+        instances.remove(key);
+      }
+    }
+    close();
+  }
+  
+  /** Stop the writer thread, write the queued traces and close the file. */
+  protected void close() {
+    writer.interrupt();
+    try {
+      writer.join();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    drain();
+    try {
+      out.close();
+    } catch (IOException ex) {
+      logger.error("Could not close trace file "+file, ex);
+    }
+    try {
+      Runtime.getRuntime().removeShutdownHook(drainHook);
+    } catch (IllegalStateException ex) {
+      // the JVM is already shutting down
+    }
+  }
+  
+  /** Decide randomly if a document should be traced, rate is from 0.0 to 1.0. */
+  public boolean sample(double rate) {
+    return rate >= 1.0 || ThreadLocalRandom.current().nextDouble() < rate;
+  }
+  
+  /** Queue the trace for writing, or drop it if the queue is full. */
+  public void write(SpanTrace trace) {
+    if(!queue.offer(trace)) {
+      long n = dropped.incrementAndGet();
+      if(Long.bitCount(n) == 1) {
+        logger.warn("Trace queue for "+file+" is full, dropped "+n+" traces so far");
+      }
+    }
+  }
+  
+  public long getDropped() {
+    return dropped.get();
+  }
+  
+  protected void writeTraces() {
+    while(true) {
+      try {
+        writeTrace(queue.take());
+        if(queue.isEmpty()) {
+          synchronized(out) {
+            out.flush();
+          }
+        }
+      } catch (InterruptedException ex) {
+        return;
+      } catch (IOException ex) {
+        logger.error("Could not write to trace file "+file, ex);
+      }
+    }
+  }
+  
+  protected void writeTrace(SpanTrace trace) throws IOException {
+    String line = mapper.writeValueAsString(toMap(trace));
+    synchronized(out) {
+      out.write(line);
+      out.write("\n");
+    }
+  }
+  
+  // write whatever is still queued when the tracer is closed or the JVM exits
+  protected void drain() {
+    try {
+      SpanTrace trace;
+      while((trace = queue.poll()) != null) {
+        writeTrace(trace);
+      }
+      synchronized(out) {
+        out.flush();
+      }
+    } catch (IOException ex) {
+      logger.error("Could not write to trace file "+file, ex);
+    }
+    if(dropped.get() > 0) {
+      logger.warn("Dropped "+dropped.get()+" traces for "+file);
+    }
+  }
+  
+  protected static Map<String,Object> toMap(SpanTrace trace) {
+    Map<String,Object> map = new LinkedHashMap<String,Object>();
+    map.put("time", trace.time);
+    map.put("doc", trace.doc);
+    if(trace.packedDocs != null) {
+      map.put("docs", trace.packedDocs);
+    }
+    map.put("from", trace.from);
+    map.put("to", trace.to);
+    map.put("length", trace.to - trace.from);
+    map.put("annotations", trace.annotations);
+    map.put("offset_errors", trace.offsetErrors);
+    long total = 0;
+    for(SpanTrace.Phase phase : SpanTrace.Phase.values()) {
+      long nanos = trace.getNanos(phase);
+      map.put(phase.name().toLowerCase()+"_us", nanos / 1000);
+      total += nanos;
+    }
+    map.put("total_us", total / 1000);
+    if(trace.error != null) {
+      map.put("error", trace.error);
+    }
+    return map;
+  }
+  
+}
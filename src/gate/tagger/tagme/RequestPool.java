@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.util.GateRuntimeException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Threads for sending the spans of a document to the service concurrently.
+ */
+public class RequestPool {
+  
+  protected final int size;
+  protected final ExecutorService executor;
+  
+  public RequestPool(int size) {
+    this.size = size;
+    executor = Executors.newFixedThreadPool(size, r -> {
+      Thread t = new Thread(r, "TagMe request");
+      t.setDaemon(true);
+      return t;
+    });
+  }
+  
+  public int getSize() {
+    return size;
+  }
+  
+  /**
+   * Tag all the texts concurrently, the result contains the mentions for 
+   * each text in the same order as the texts. 
+   */
+  public List<List<Mention>> tagAll(TextTagger tagger, List<String> texts, long[] froms) {
+    return tagAll(tagger, texts, froms, null);
+  }
+  
+  /**
+   * Like tagAll(tagger, texts, froms), but each text is tagged with the
+   * trace at the same index as the current trace. The traces array or 
+   * its elements can be null.
+   */
+  public List<List<Mention>> tagAll(TextTagger tagger, List<String> texts, long[] froms, SpanTrace[] traces) {
+    List<Future<List<Mention>>> futures = new ArrayList<Future<List<Mention>>>();
+    for(int i = 0; i < texts.size(); i++) {
+      futures.add(submit(tagger, texts.get(i), froms[i], traces == null ? null : traces[i]));
+    }
+    List<List<Mention>> ret = new ArrayList<List<Mention>>();
+    try {
+      for(Future<List<Mention>> future : futures) {
+        ret.add(getResult(future));
+      }
+    } finally {
+      for(Future<List<Mention>> future : futures) {
+        future.cancel(true);
+      }
+    }
+    return ret;
+  }
+  
+  /** Start tagging the text in one of the threads. */
+  public Future<List<Mention>> submit(TextTagger tagger, String text, long from) {
+    return submit(tagger, text, from, null);
+  }
+  
+  /** 
+   * Start tagging the text in one of the threads, with the trace as the 
+   * current trace of that thread if it is not null.
+   */
+  public Future<List<Mention>> submit(final TextTagger tagger, final String text, final long from, 
+          final SpanTrace trace) {
+    return executor.submit(() -> {
+      SpanTrace.setCurrent(trace);
+      try {
+        return tagger.tagText(text, from);
+      } catch (RuntimeException ex) {
+        if(trace != null) {
+          trace.error = ex.getMessage();
+        }
+        throw ex;
+      } finally {
+        SpanTrace.setCurrent(null);
+      }
+    });
+  }
+  
+  /** 
+   * Wait for the mentions from a submitted text, exceptions from the 
+   * tagger are rethrown.
+   */
+  public static List<Mention> getResult(Future<List<Mention>> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new GateRuntimeException("Interrupted while waiting for the service", ex);
+    } catch (ExecutionException ex) {
+      if(ex.getCause() instanceof RuntimeException) {
+        throw (RuntimeException)ex.getCause();
+      }
+      throw new GateRuntimeException("Problem getting annotations from the service", ex.getCause());
+    }
+  }
+  
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+  
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import java.net.URI;
+import java.util.List;
+import org.apache.http.NameValuePair;
+
+/**
+ * The way how HTTP requests are sent to the service. 
+ * 
+ * Implementations must be safe to use from several threads at the same time.
+ * Failed requests and HTTP error status codes are reported as 
+ * GateRuntimeException.
+ */
+public interface ServiceTransport {
+  
+  /** Send a form as a POST request and return the response body. */
+  public String post(URI uri, List<NameValuePair> form);
+  
+  /** Send a GET request and return the response body. */
+  public String get(URI uri);
+  
+}
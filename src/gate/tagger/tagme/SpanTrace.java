@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import java.util.List;
+
+/**
+ * Timing of the phases of processing one span, written to the trace log 
+ * by a {@link PhaseTracer}. 
+ * 
+ * While a span is being tagged, its trace is the current trace of the 
+ * thread doing it, so that the code for each phase can add its time 
+ * without passing the trace around. 
+ */
+public class SpanTrace {
+  
+  public enum Phase {
+    /** Getting the text of the span from the document. */
+    EXTRACT,
+    /** Cleaning the text of a tweet. */
+    CLEAN,
+    /** Creating the request. */
+    BUILD,
+    /** Waiting for the response of the service. */
+    NETWORK,
+    /** Parsing the JSON response. */
+    PARSE,
+    /** Creating the DBpedia URIs. */
+    RECODE,
+    /** Adding the annotations to the document. */
+    ADD_ANN
+  }
+  
+  private static final ThreadLocal<SpanTrace> current = new ThreadLocal<SpanTrace>();
+  
+  public final long time = System.currentTimeMillis();
+  public final String doc;
+  public final long from;
+  public final long to;
+  public int annotations = 0;
+  // mentions which could not be added as annotations
+  public int offsetErrors = 0;
+  public String error = null;
+  // the documents of all the spans of a packed request, null otherwise
+  public List<String> packedDocs = null;
+  protected final long[] nanos = new long[Phase.values().length];
+  
+  public SpanTrace(String doc, long from, long to) {
+    this.doc = doc;
+    this.from = from;
+    this.to = to;
+  }
+  
+  /** The trace for the span tagged in this thread, or null if not tracing. */
+  public static SpanTrace current() {
+    return current.get();
+  }
+  
+  public static void setCurrent(SpanTrace trace) {
+    if(trace == null) {
+      current.remove();
+    } else {
+      current.set(trace);
+    }
+  }
+  
+  /** 
+   * Add the time from startNanos until now to the phase of the current 
+   * trace, if there is one.
+   */
+  public static void addCurrent(Phase phase, long startNanos) {
+    SpanTrace trace = current.get();
+    if(trace != null) {
+      trace.add(phase, startNanos);
+    }
+  }
+  
+  /** Add the time from startNanos (from System.nanoTime()) until now to the phase. */
+  public void add(Phase phase, long startNanos) {
+    nanos[phase.ordinal()] += System.nanoTime() - startNanos;
+  }
+  
+  public long getNanos(Phase phase) {
+    return nanos[phase.ordinal()];
+  }
+  
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import java.lang.Character.UnicodeScript;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cheap checks to find texts which cannot contain any entities, so that
+ * no request needs to be sent for them, with counts of how many texts 
+ * were skipped for which reason.
+ */
+public class SpanTriage {
+  
+  public enum Reason {
+    /** Nothing but whitespace, e.g. after cleaning a tweet. */
+    BLANK,
+    /** Fewer letters than the minimum. */
+    TOO_FEW_LETTERS,
+    /** Too many non-whitespace characters which are not letters. */
+    TOO_MANY_NON_LETTERS,
+    /** Most letters are not in the script of the language. */
+    WRONG_SCRIPT
+  }
+  
+  // scripts for the languages we know, other languages are not checked
+  protected static final Map<String,Set<UnicodeScript>> LANGUAGE_SCRIPTS = 
+          new HashMap<String,Set<UnicodeScript>>();
+  static {
+    for(String lang : new String[]{"en","it","de","fr","es","pt","nl"}) {
+      LANGUAGE_SCRIPTS.put(lang, EnumSet.of(UnicodeScript.LATIN));
+    }
+    LANGUAGE_SCRIPTS.put("ru", EnumSet.of(UnicodeScript.CYRILLIC));
+    LANGUAGE_SCRIPTS.put("el", EnumSet.of(UnicodeScript.GREEK));
+    LANGUAGE_SCRIPTS.put("ar", EnumSet.of(UnicodeScript.ARABIC));
+    LANGUAGE_SCRIPTS.put("zh", EnumSet.of(UnicodeScript.HAN));
+    LANGUAGE_SCRIPTS.put("ja", EnumSet.of(UnicodeScript.HAN, UnicodeScript.HIRAGANA, UnicodeScript.KATAKANA));
+  }
+  
+  protected final AtomicLong checked = new AtomicLong();
+  protected final Map<Reason,AtomicLong> skipped = new EnumMap<Reason,AtomicLong>(Reason.class);
+  
+  public SpanTriage() {
+    for(Reason reason : Reason.values()) {
+      skipped.put(reason, new AtomicLong());
+    }
+  }
+  
+  /**
+   * Check the text and return the reason for skipping it, or null if 
+   * it should be sent to the service. 
+   * 
+   * @param minLetters minimum number of letters, 0 to not check
+   * @param maxNonLetterRatio maximum ratio of non-letters to non-whitespace 
+   * characters, 1.0 to not check
+   * @param languageCode if not null, check that at least half of the letters
+   * are in a script used for the language 
+   */
+  public Reason check(String text, int minLetters, double maxNonLetterRatio, String languageCode) {
+    checked.incrementAndGet();
+    Set<UnicodeScript> scripts = languageCode == null ? null : LANGUAGE_SCRIPTS.get(languageCode);
+    int letters = 0;
+    int others = 0;
+    int inScript = 0;
+    for(int i = 0; i < text.length(); ) {
+      int cp = text.codePointAt(i);
+      i += Character.charCount(cp);
+      if(Character.isLetter(cp)) {
+        letters++;
+        if(scripts != null && scripts.contains(UnicodeScript.of(cp))) {
+          inScript++;
+        }
+      } else if(!Character.isWhitespace(cp) && !Character.isSpaceChar(cp)) {
+        others++;
+      }
+    }
+    Reason reason = null;
+    if(letters + others == 0) {
+      reason = Reason.BLANK;
+    } else if(letters < minLetters) {
+      reason = Reason.TOO_FEW_LETTERS;
+    } else if(others > maxNonLetterRatio * (letters + others)) {
+      reason = Reason.TOO_MANY_NON_LETTERS;
+    } else if(scripts != null && inScript * 2 < letters) {
+      reason = Reason.WRONG_SCRIPT;
+    }
+    if(reason != null) {
+      skipped.get(reason).incrementAndGet();
+    }
+    return reason;
+  }
+  
+  public long getChecked() {
+    return checked.get();
+  }
+  
+  public long getSkipped(Reason reason) {
+    return skipped.get(reason).get();
+  }
+  
+  public void reset() {
+    checked.set(0);
+    for(AtomicLong count : skipped.values()) {
+      count.set(0);
+    }
+  }
+  
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Spans checked: ").append(checked.get()).append(", skipped:");
+    for(Reason reason : Reason.values()) {
+      sb.append(" ").append(reason).append("=").append(skipped.get(reason).get());
+    }
+    return sb.toString();
+  }
+  
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.Annotation;
+import gate.AnnotationSet;
+import gate.Controller;
+import gate.Document;
+import gate.Factory;
+import gate.FeatureMap;
+import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ControllerAwarePR;
+import gate.creole.ExecutionException;
+import gate.creole.metadata.CreoleParameter;
+import gate.creole.metadata.CreoleResource;
+import gate.creole.metadata.Optional;
+import gate.creole.metadata.RunTime;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import org.apache.log4j.Logger;
+
+/** 
+ *  PR which sends each span to both the TagMe and the WAT service at the
+ *  same time and creates one annotation for each mention found by either
+ *  or both of them.
+ */
+@CreoleResource(name = "Tagger_TagMeWatEnsemble",
+        comment = "Annotate documents using both a TagMe and a WAT web service",
+        // icon="taggerIcon.gif",
+        helpURL="https://github.com/GateNLP/gateplugin-Tagger_TagMe/wiki/Tagger_TagMeWatEnsemble"
+)
+public class TaggerEnsembleWS  
+  extends AbstractLanguageAnalyser implements ControllerAwarePR {
+
+  private static final long serialVersionUID = 2203358911474410615L;
+
+  protected String inputASName = "";
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Input annotation set for containing annotations, default is the default set",
+          defaultValue = "")
+  public void setInputAnnotationSet(String ias) {
+    inputASName = ias;
+  }
+
+  public String getInputAnnotationSet() {
+    return inputASName;
+  }
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Only text covered by each containing annotation is annotated, default: annotate whole document",
+          defaultValue = "")
+  public void setContainingAnnotationType(String val) {
+    this.containingType = val;
+  }
+
+  public String getContainingAnnotationType() {
+    return containingType;
+  }
+  protected String containingType = "";
+
+  protected String outputASName = "";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Output annotation set, default is default annotation set",
+          defaultValue = "")
+  public void setOutputAnnotationSet(String ias) {
+    outputASName = ias;
+  }
+
+  public String getOutputAnnotationSet() {
+    return outputASName;
+  }
+  protected String outputType = "";
+
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "The output annotation type, default is 'Lookup'",
+          defaultValue = "Lookup")
+  public void setOutputAnnotationType(String val) {
+    this.outputType = val;
+  }
+
+  public String getOutputAnnotationType() {
+    return outputType;
+  }
+  
+  protected URL tagMeServiceUrl = null;
+  
+  @RunTime
+  @CreoleParameter( 
+          comment = "The URL of the TagMe web service to use",
+          defaultValue = "https://tagme.d4science.org/tagme/tag")
+  public void setTagMeServiceUrl(URL url) {
+    tagMeServiceUrl = url;
+  }
+  
+  public URL getTagMeServiceUrl() {
+    return tagMeServiceUrl;
+  }
+  
+  protected URL watServiceUrl = null;
+  
+  @RunTime
+  @CreoleParameter( 
+          comment = "The URL of the WAT web service to use",
+          defaultValue = "https://wat.d4science.org/wat/tag/tag")
+  public void setWatServiceUrl(URL url) {
+    watServiceUrl = url;
+  }
+  
+  public URL getWatServiceUrl() {
+    return watServiceUrl;
+  }
+  
+  @RunTime
+  @CreoleParameter(
+          comment = "The service auth token to use for both services, required, no default",
+          defaultValue = ""
+          )
+  public void setApiKey(String key) {
+    apiKey = key;
+  }
+  public String getApiKey() {
+    return apiKey;
+  }
+  protected String apiKey = "";
+  
+  @RunTime
+  @CreoleParameter(
+          comment = "Should be true if the text is a tweet or very short (TagMe only)",
+          defaultValue = "false"
+          )
+  public void setIsTweet(Boolean flag) {
+    isTweet = flag;
+  }
+  public Boolean getIsTweet() {
+    return isTweet;
+  }
+  protected Boolean isTweet = false;
+  
+  @RunTime
+  @CreoleParameter(
+          comment = "Language code, currently supported: en,it,de",
+          defaultValue = "en"
+          )
+  public void setLanguageCode(String code) {
+    languageCode = code;
+  }
+  public String getLanguageCode() {
+    return languageCode;
+  }
+
+  protected String languageCode = "en";
+  
+  @RunTime
+  @CreoleParameter(
+          comment = "Epsilon: balance between context and commonness, useful range is 0.0 to 0.5 (TagMe only)",
+          defaultValue = "0.3"
+          )
+  public void setEpsilon(Double value) {
+    epsilon = value;
+  }
+  public Double getEpsilon() {
+    return epsilon;
+  }
+
+  protected Double epsilon = 0.3;
+
+  @RunTime
+  @CreoleParameter(
+          comment = "long_text parameter sent to the service, value 0 (default) or a positive integer (TagMe only)",
+          defaultValue = "0"
+          )
+  public void setLongText(Integer value) {
+    long_text = value;
+  }
+  public Integer getLongText() {
+    return long_text;
+  }
+
+  protected Integer long_text = 0;
+  
+  @RunTime
+  @CreoleParameter(
+          comment = "Minimum value of rho: mentions with a rho less than this are ignored, for each service separately",
+          defaultValue = "0.2"
+  )
+  public void setMinRho(Double value) {
+    minrho = value;
+  }
+  public Double getMinRho() { return minrho; }
+  protected double minrho = 0.2;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "If true, only annotate mentions found by both services",
+          defaultValue = "false"
+  )
+  public void setRequireAgreement(Boolean value) {
+    requireAgreement = value;
+  }
+  public Boolean getRequireAgreement() { return requireAgreement; }
+  protected Boolean requireAgreement = false;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "HTTP transport: HTTP1 (Apache HttpClient) or HTTP2 (JDK client, multiplexed, falls back to HTTP1 if not supported by the server)",
+          defaultValue = "HTTP1"
+  )
+  public void setTransport(TransportType value) {
+    transport = value;
+  }
+  public TransportType getTransport() { return transport; }
+  protected TransportType transport = TransportType.HTTP1;
+    
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Optional page id to DBpedia URI map file (see PageIdUriMap), used for inst if the tagMeId is found"
+  )
+  public void setPageIdUriMapUrl(URL value) {
+    pageIdUriMapUrl = value;
+  }
+  public URL getPageIdUriMapUrl() { return pageIdUriMapUrl; }
+  protected URL pageIdUriMapUrl = null;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Maximum number of containing annotations of a document sent to each service at the same time",
+          defaultValue = "1"
+  )
+  public void setMaxConcurrentRequests(Integer value) {
+    maxConcurrentRequests = value;
+  }
+  public Integer getMaxConcurrentRequests() { return maxConcurrentRequests; }
+  protected Integer maxConcurrentRequests = 1;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Adapt the number of requests in flight to the latency and errors of each service",
+          defaultValue = "false"
+  )
+  public void setAdaptiveConcurrency(Boolean value) {
+    adaptiveConcurrency = value;
+  }
+  public Boolean getAdaptiveConcurrency() { return adaptiveConcurrency; }
+  protected Boolean adaptiveConcurrency = false;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Texts with fewer letters than this are not sent to the services",
+          defaultValue = "0"
+  )
+  public void setTriageMinLetters(Integer value) {
+    triageMinLetters = value;
+  }
+  public Integer getTriageMinLetters() { return triageMinLetters; }
+  protected Integer triageMinLetters = 0;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Texts where the ratio of non-letters to all non-whitespace characters is higher are not sent to the services, 1.0 to not check",
+          defaultValue = "1.0"
+  )
+  public void setTriageMaxNonLetterRatio(Double value) {
+    triageMaxNonLetterRatio = value;
+  }
+  public Double getTriageMaxNonLetterRatio() { return triageMaxNonLetterRatio; }
+  protected Double triageMaxNonLetterRatio = 1.0;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "If true, texts where most letters are not in the script of the language are not sent to the services",
+          defaultValue = "false"
+  )
+  public void setTriageCheckScript(Boolean value) {
+    triageCheckScript = value;
+  }
+  public Boolean getTriageCheckScript() { return triageCheckScript; }
+  protected Boolean triageCheckScript = false;
+    
+  static final Logger logger = Logger.getLogger(TaggerEnsembleWS.class);
+  
+  // The two taggers are not created as GATE resources, they are only used
+  // for their tagText method and get their parameters from this PR.
+  protected TaggerTagMeWS tagMe = new TaggerTagMeWS();
+  protected TaggerWatWS wat = new TaggerWatWS();
+  
+  // the code shared with the other tagger PRs
+  protected TaggerSupport support = new TaggerSupport();
+  
+  @Override
+  public void execute() throws ExecutionException {
+    doExecute(document); 
+  }
+
+  protected void doExecute(Document theDocument) throws ExecutionException {
+    interrupted = false;
+    if (theDocument == null) {
+      throw new ExecutionException("No document to process!");
+    }
+    configureTaggers();
+    // both services get their own threads for each concurrent span
+    RequestPool requestPool = support.getRequestPool(2 * getMaxConcurrentRequests());
+    AnnotationSet outputAS = theDocument.getAnnotations(getOutputAnnotationSet());
+    List<long[]> spans = new ArrayList<long[]>();
+    if (containingType == null || containingType.isEmpty()) {
+      spans.add(new long[]{0, theDocument.getContent().size()});
+    } else {
+      AnnotationSet inputAS;
+      if (inputASName == null
+              || inputASName.isEmpty()) {
+        inputAS = theDocument.getAnnotations();
+      } else {
+        inputAS = theDocument.getAnnotations(inputASName);
+      }      
+      AnnotationSet containingAnns = inputAS.get(containingType);
+      for(Annotation containingAnn : containingAnns) {
+        spans.add(new long[]{gate.Utils.start(containingAnn),gate.Utils.end(containingAnn)});
+      }
+    }
+    // submit all the spans to both services at once, the size of the pool
+    // limits how many requests are in flight
+    List<long[]> sent = new ArrayList<long[]>();
+    List<Future<List<Mention>>> tagMeFutures = new ArrayList<Future<List<Mention>>>();
+    List<Future<List<Mention>>> watFutures = new ArrayList<Future<List<Mention>>>();
+    try {
+      for(long[] span : spans) {
+        String text = support.getSpanText(theDocument, span[0], span[1], null);
+        if(!passesTriage(text)) {
+          continue;
+        }
+        sent.add(span);
+        tagMeFutures.add(requestPool.submit(tagMe, text, span[0]));
+        watFutures.add(requestPool.submit(wat, text, span[0]));
+      }
+      for(int i = 0; i < sent.size(); i++) {
+        List<Mention> merged = mergeMentions(
+                RequestPool.getResult(tagMeFutures.get(i)), 
+                RequestPool.getResult(watFutures.get(i)));
+        support.addMentions(theDocument, outputAS, getOutputAnnotationType(), 
+                sent.get(i)[0], sent.get(i)[1], merged);
+      }
+    } finally {
+      for(Future<List<Mention>> future : tagMeFutures) {
+        future.cancel(true);
+      }
+      for(Future<List<Mention>> future : watFutures) {
+        future.cancel(true);
+      }
+    }
+  }
+  
+  /** Counts of the texts which were not sent to the services and why. */
+  public SpanTriage getSpanTriage() {
+    return support.getSpanTriage();
+  }
+  
+  @Override
+  public void controllerExecutionStarted(Controller c) throws ExecutionException {
+    support.getSpanTriage().reset();
+  }
+
+  @Override
+  public void controllerExecutionFinished(Controller c) throws ExecutionException {
+    logger.info(support.getSpanTriage());
+  }
+
+  @Override
+  public void controllerExecutionAborted(Controller c, Throwable t) throws ExecutionException {
+    logger.info(support.getSpanTriage());
+  }
+  
+  // the triage is done once for both services, the taggers themselves 
+  // keep their defaults which send every text
+  protected boolean passesTriage(String text) {
+    return support.passesTriage(text, getTriageMinLetters(), 
+            getTriageMaxNonLetterRatio(), getTriageCheckScript() ? getLanguageCode() : null);
+  }
+  
+  protected void configureTaggers() {
+    tagMe.setTagMeServiceUrl(getTagMeServiceUrl());
+    tagMe.setApiKey(getApiKey());
+    tagMe.setIsTweet(getIsTweet());
+    tagMe.setLanguageCode(getLanguageCode());
+    tagMe.setEpsilon(getEpsilon());
+    tagMe.setLongText(getLongText());
+    tagMe.setMinRho(getMinRho());
+    tagMe.setTransport(getTransport());
+    tagMe.setPageIdUriMapUrl(getPageIdUriMapUrl());
+    tagMe.setAdaptiveConcurrency(getAdaptiveConcurrency());
+    wat.setTagMeServiceUrl(getWatServiceUrl());
+    wat.setApiKey(getApiKey());
+    wat.setLanguageCode(getLanguageCode());
+    wat.setMinRho(getMinRho());
+    wat.setTransport(getTransport());
+    wat.setPageIdUriMapUrl(getPageIdUriMapUrl());
+    wat.setAdaptiveConcurrency(getAdaptiveConcurrency());
+  }
+  
+  /**
+   * Merge the mentions found by TagMe and WAT: mentions with the same 
+   * offsets and the same tagMeId become one mention. The features of the
+   * merged mention are those of the TagMe mention if there is one, plus
+   * "backends" (which services found it, "tagme", "wat" or "tagme,wat"),
+   * "rho_tagme" and "rho_wat" for each service which found it, and 
+   * rho, the maximum of those.
+   */
+  protected List<Mention> mergeMentions(List<Mention> tagMeMentions, List<Mention> watMentions) {
+    Map<String,Mention> merged = new LinkedHashMap<String,Mention>();
+    for(Mention mention : tagMeMentions) {
+      FeatureMap fm = Factory.newFeatureMap();
+      fm.putAll(mention.features);
+      fm.put("backends", "tagme");
+      fm.put("rho_tagme", mention.features.get("rho"));
+      merged.put(mentionKey(mention), new Mention(mention.start, mention.end, fm));
+    }
+    for(Mention mention : watMentions) {
+      Mention existing = merged.get(mentionKey(mention));
+      if(existing == null) {
+        FeatureMap fm = Factory.newFeatureMap();
+        fm.putAll(mention.features);
+        fm.put("backends", "wat");
+        fm.put("rho_wat", mention.features.get("rho"));
+        merged.put(mentionKey(mention), new Mention(mention.start, mention.end, fm));
+      } else {
+        existing.features.put("backends", "tagme,wat");
+        existing.features.put("rho_wat", mention.features.get("rho"));
+        existing.features.put("rho", Math.max(
+                (Double)existing.features.get("rho_tagme"), (Double)mention.features.get("rho")));
+      }
+    }
+    List<Mention> ret = new ArrayList<Mention>();
+    for(Mention mention : merged.values()) {
+      if(!getRequireAgreement() || "tagme,wat".equals(mention.features.get("backends"))) {
+        ret.add(mention);
+      }
+    }
+    return ret;
+  }
+  
+  protected static String mentionKey(Mention mention) {
+    return mention.start+":"+mention.end+":"+mention.features.get("tagMeId");
+  }
+  
+  @Override
+  public void cleanup() {
+    support.cleanup();
+    super.cleanup();
+  }
+
+} // class TaggerEnsembleWS
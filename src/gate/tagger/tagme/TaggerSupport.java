@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+import gate.AnnotationSet;
+import gate.Document;
+import gate.util.GateRuntimeException;
+import gate.util.InvalidOffsetException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Supplier;
+import org.apache.log4j.Logger;
+
+/**
+ * The code shared by the tagger PRs. Each PR has its own instance and
+ * passes in its parameter values.
+ */
+public class TaggerSupport {
+  
+  static final Logger logger = Logger.getLogger(TaggerSupport.class);
+  
+  protected final SpanTriage spanTriage = new SpanTriage();
+  protected RequestPool requestPool = null;
+  // the tracer for traceFileUrl, released on cleanup or when the URL changes
+  protected PhaseTracer tracer = null;
+  protected URL traceFileUrl = null;
+  // true if the spans of the current document are traced
+  protected boolean traceDocument = false;
+  // the page id map for the last map URL, looked up once instead of for 
+  // each mention; getInst is called by the request threads, so the URL 
+  // and the map are replaced together
+  protected volatile IdMap idMap = null;
+  
+  protected static class IdMap {
+    final URL url;
+    final PageIdUriMap map;
+    IdMap(URL url, PageIdUriMap map) {
+      this.url = url;
+      this.map = map;
+    }
+  }
+  
+  /** 
+   * The transport to use for requests to the service, limited by the 
+   * adaptive limiter for the service if adaptive is true.
+   */
+  public static ServiceTransport getServiceTransport(TransportType transport, boolean adaptive, URL serviceUrl) {
+    ServiceTransport ret = transport.getTransport();
+    if(adaptive) {
+      ret = new LimitedTransport(ret, AdaptiveLimiter.getInstance(serviceUrl));
+    }
+    return ret;
+  }
+  
+  // TRIAGE
+  
+  /** Counts of the texts which were not sent to the service and why. */
+  public SpanTriage getSpanTriage() {
+    return spanTriage;
+  }
+  
+  /**
+   * Check if the text could contain any entities. Blank texts are always
+   * skipped, the other checks depend on the triage parameters.
+   */
+  public boolean passesTriage(String text, int minLetters, double maxNonLetterRatio, String languageCode) {
+    SpanTriage.Reason reason = spanTriage.check(text, minLetters, maxNonLetterRatio, languageCode);
+    if(reason != null) {
+      logger.debug("Not sending text, "+reason+": >>"+text+"<<");
+      return false;
+    }
+    return true;
+  }
+  
+  // URIS
+  
+  /** 
+   * Return the DBpedia URI for the annotation: from the page id map if
+   * there is one and it contains the id, otherwise made from the title.
+   */
+  public String getInst(URL pageIdUriMapUrl, int id, String title) {
+    if(pageIdUriMapUrl != null) {
+      IdMap current = idMap;
+      if(current == null || (current.url != pageIdUriMapUrl && 
+              !current.url.toExternalForm().equals(pageIdUriMapUrl.toExternalForm()))) {
+        current = new IdMap(pageIdUriMapUrl, PageIdUriMap.getInstance(pageIdUriMapUrl));
+        idMap = current;
+      }
+      String inst = current.map.get(id);
+      if(inst != null) {
+        return inst;
+      }
+    }
+    return "http://dbpedia.org/resource/" + TaggerTagMeWS.recodeForDbp38(title);
+  }
+  
+  // TRACING
+  
+  /** 
+   * Decide if the spans of the next document are traced, must be called 
+   * before processing each document.
+   */
+  public void startDocument(URL traceFileUrl, double sampleRate) {
+    if(traceFileUrl == null ? this.traceFileUrl != null : !traceFileUrl.equals(this.traceFileUrl)) {
+      releaseTracer();
+      if(traceFileUrl != null) {
+        tracer = PhaseTracer.getInstance(traceFileUrl);
+      }
+      this.traceFileUrl = traceFileUrl;
+    }
+    traceDocument = tracer != null && tracer.sample(sampleRate);
+  }
+  
+  protected void releaseTracer() {
+    if(tracer != null) {
+      tracer.release();
+      tracer = null;
+      traceFileUrl = null;
+    }
+  }
+  
+  public SpanTrace startTrace(Document doc, long from, long to) {
+    return traceDocument ? new SpanTrace(doc.getName(), from, to) : null;
+  }
+  
+  /**
+   * Start the trace of a packed request, which is traced as one span of 
+   * the packed text. Whether it is traced is decided for the request 
+   * itself, as its spans may come from several documents.
+   */
+  public SpanTrace startPackedTrace(List<String> docNames, long length, double sampleRate) {
+    if(tracer == null || !tracer.sample(sampleRate)) {
+      return null;
+    }
+    SpanTrace trace = new SpanTrace(docNames.get(0), 0, length);
+    trace.packedDocs = docNames;
+    return trace;
+  }
+  
+  public void finishTrace(SpanTrace trace) {
+    if(trace != null) {
+      tracer.write(trace);
+    }
+  }
+  
+  /**
+   * Run the tagging work with the trace as the current trace. If it fails,
+   * the trace is finished with the error.
+   */
+  public List<Mention> tagTraced(SpanTrace trace, Supplier<List<Mention>> work) {
+    SpanTrace.setCurrent(trace);
+    try {
+      return work.get();
+    } catch (RuntimeException ex) {
+      if(trace != null) {
+        trace.error = ex.getMessage();
+        finishTrace(trace);
+      }
+      throw ex;
+    } finally {
+      SpanTrace.setCurrent(null);
+    }
+  }
+  
+  // ANNOTATING
+  
+  /** 
+   * Get the text of the span from the document. If that fails, the trace 
+   * is finished with the error.
+   */
+  public String getSpanText(Document doc, long from, long to, SpanTrace trace) {
+    long t = System.nanoTime();
+    String text;
+    try {
+      text = doc.getContent().getContent(from, to).toString();
+    } catch (InvalidOffsetException ex) {
+      GateRuntimeException error = 
+              new GateRuntimeException("Unexpected offset exception, offsets are "+from+"/"+to);
+      if(trace != null) {
+        trace.error = error.getMessage();
+        finishTrace(trace);
+      }
+      throw error;
+    }
+    if(trace != null) {
+      trace.add(SpanTrace.Phase.EXTRACT, t);
+    }
+    return text;
+  }
+  
+  /** Tag the text of the span and add the annotations to the document. */
+  public void annotateText(TextTagger tagger, Document doc, AnnotationSet outputAS, String type, long from, long to) {
+    final SpanTrace trace = startTrace(doc, from, to);
+    final String text = getSpanText(doc, from, to, trace);
+    List<Mention> mentions = tagTraced(trace, () -> tagger.tagText(text, from));
+    long t = System.nanoTime();
+    int failed = addMentions(doc, outputAS, type, from, to, mentions);
+    if(trace != null) {
+      trace.add(SpanTrace.Phase.ADD_ANN, t);
+      trace.annotations = mentions.size() - failed;
+      trace.offsetErrors = failed;
+      finishTrace(trace);
+    }
+  }
+  
+  /**
+   * Annotate all the spans, sending up to maxConcurrent of them to the 
+   * service at the same time. The annotations are added in the calling
+   * thread once all the responses are there.
+   */
+  public void annotateTextsConcurrently(TextTagger tagger, Document doc, AnnotationSet outputAS, 
+          String type, List<long[]> spans, int maxConcurrent) {
+    List<String> texts = new ArrayList<String>();
+    long[] froms = new long[spans.size()];
+    SpanTrace[] traces = new SpanTrace[spans.size()];
+    for(int i = 0; i < spans.size(); i++) {
+      long[] span = spans.get(i);
+      traces[i] = startTrace(doc, span[0], span[1]);
+      texts.add(getSpanText(doc, span[0], span[1], traces[i]));
+      froms[i] = span[0];
+    }
+    List<List<Mention>> mentions;
+    try {
+      mentions = getRequestPool(maxConcurrent).tagAll(tagger, texts, froms, traces);
+    } finally {
+      for(SpanTrace trace : traces) {
+        if(trace != null && trace.error != null) {
+          finishTrace(trace);
+        }
+      }
+    }
+    for(int i = 0; i < spans.size(); i++) {
+      long t = System.nanoTime();
+      int failed = addMentions(doc, outputAS, type, spans.get(i)[0], spans.get(i)[1], mentions.get(i));
+      if(traces[i] != null) {
+        traces[i].add(SpanTrace.Phase.ADD_ANN, t);
+        traces[i].annotations = mentions.get(i).size() - failed;
+        traces[i].offsetErrors = failed;
+        finishTrace(traces[i]);
+      }
+    }
+  }
+  
+  /** The pool for concurrent requests, recreated if the size changed. */
+  public RequestPool getRequestPool(int size) {
+    if(requestPool == null || requestPool.getSize() != size) {
+      if(requestPool != null) {
+        requestPool.shutdown();
+      }
+      requestPool = new RequestPool(size);
+    }
+    return requestPool;
+  }
+  
+  /** 
+   * Add an annotation of the given type for each mention and return the
+   * number of mentions which could not be added.
+   */
+  public int addMentions(Document doc, AnnotationSet outputAS, String type, long from, long to, List<Mention> mentions) {
+    int failed = 0;
+    for(Mention mention : mentions) {
+      try {
+        gate.Utils.addAnn(outputAS, mention.start, mention.end, type, mention.features);
+      } catch (Exception ex) {
+        System.err.println("Got an exception in document " + doc.getName() + ": " + ex.getLocalizedMessage());
+        ex.printStackTrace(System.err);
+        System.err.println("from=" + from + ", to=" + to + " Mention=" + mention);
+        failed++;
+      }
+    }
+    return failed;
+  }
+  
+  public void cleanup() {
+    if(requestPool != null) {
+      requestPool.shutdown();
+      requestPool = null;
+    }
+    releaseTracer();
+  }
+  
+}
@@ -23,31 +23,29 @@ package gate.tagger.tagme;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gate.Annotation;
 import gate.AnnotationSet;
+import gate.Controller;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
 import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
 import gate.util.GateRuntimeException;
-import gate.util.InvalidOffsetException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.http.Consts;
-import org.apache.http.client.fluent.Content;
+import org.apache.http.NameValuePair;
 import org.apache.http.client.fluent.Form;
-
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
 import org.apache.log4j.Logger;
 
 /** 
@@ -59,7 +57,7 @@ import org.apache.log4j.Logger;
         helpURL="https://github.com/GateNLP/gateplugin-Tagger_TagMe/wiki/Tagger_TagMe"
 )
 public class TaggerTagMeWS  
-  extends AbstractLanguageAnalyser  {
+  extends AbstractLanguageAnalyser implements ControllerAwarePR, TextTagger {
 
   private static final long serialVersionUID = 5322455999996492868L;
 
@@ -219,6 +217,149 @@ public class TaggerTagMeWS
   public Double getMinRho() { return minrho; }
   protected double minrho = 0.2;
     
+  @RunTime
+  @CreoleParameter(
+          comment = "HTTP transport: HTTP1 (Apache HttpClient) or HTTP2 (JDK client, multiplexed, falls back to HTTP1 if not supported by the server)",
+          defaultValue = "HTTP1"
+  )
+  public void setTransport(TransportType value) {
+    transport = value;
+  }
+  public TransportType getTransport() { return transport; }
+  protected TransportType transport = TransportType.HTTP1;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Tweet mode only: maximum number of documents to pack into one request, 1 (default) sends each document on its own",
+          defaultValue = "1"
+  )
+  public void setBatchDocuments(Integer value) {
+    batchDocuments = value;
+  }
+  public Integer getBatchDocuments() { return batchDocuments; }
+  protected Integer batchDocuments = 1;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Tweet mode only: maximum number of characters to pack into one request",
+          defaultValue = "5000"
+  )
+  public void setBatchMaxChars(Integer value) {
+    batchMaxChars = value;
+  }
+  public Integer getBatchMaxChars() { return batchMaxChars; }
+  protected Integer batchMaxChars = 5000;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Tweet mode only: when the next document is processed, the waiting packed documents are sent first if they waited at least this many milliseconds",
+          defaultValue = "2000"
+  )
+  public void setBatchMaxLinger(Integer value) {
+    batchMaxLinger = value;
+  }
+  public Integer getBatchMaxLinger() { return batchMaxLinger; }
+  protected Integer batchMaxLinger = 2000;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Must be true to pack documents: the annotations of a packed document are only added after the following PRs of the pipeline have processed it, so those PRs do not see them",
+          defaultValue = "false"
+  )
+  public void setAllowDelayedAnnotations(Boolean value) {
+    allowDelayedAnnotations = value;
+  }
+  public Boolean getAllowDelayedAnnotations() { return allowDelayedAnnotations; }
+  protected Boolean allowDelayedAnnotations = false;
+    
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Optional page id to DBpedia URI map file (see PageIdUriMap), used for inst if the tagMeId is found"
+  )
+  public void setPageIdUriMapUrl(URL value) {
+    pageIdUriMapUrl = value;
+  }
+  public URL getPageIdUriMapUrl() { return pageIdUriMapUrl; }
+  protected URL pageIdUriMapUrl = null;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Maximum number of containing annotations of a document sent to the service at the same time",
+          defaultValue = "1"
+  )
+  public void setMaxConcurrentRequests(Integer value) {
+    maxConcurrentRequests = value;
+  }
+  public Integer getMaxConcurrentRequests() { return maxConcurrentRequests; }
+  protected Integer maxConcurrentRequests = 1;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Adapt the number of requests in flight (and reduce the size of packed requests below batchMaxChars) to the latency and errors of the service",
+          defaultValue = "false"
+  )
+  public void setAdaptiveConcurrency(Boolean value) {
+    adaptiveConcurrency = value;
+  }
+  public Boolean getAdaptiveConcurrency() { return adaptiveConcurrency; }
+  protected Boolean adaptiveConcurrency = false;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Texts with fewer letters are not sent to the service, 0 to not check",
+          defaultValue = "0"
+  )
+  public void setTriageMinLetters(Integer value) {
+    triageMinLetters = value;
+  }
+  public Integer getTriageMinLetters() { return triageMinLetters; }
+  protected Integer triageMinLetters = 0;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Texts where the ratio of non-letters to all non-whitespace characters is higher are not sent to the service, 1.0 to not check",
+          defaultValue = "1.0"
+  )
+  public void setTriageMaxNonLetterRatio(Double value) {
+    triageMaxNonLetterRatio = value;
+  }
+  public Double getTriageMaxNonLetterRatio() { return triageMaxNonLetterRatio; }
+  protected Double triageMaxNonLetterRatio = 1.0;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "If true, texts where most letters are not in the script of the language are not sent to the service",
+          defaultValue = "false"
+  )
+  public void setTriageCheckScript(Boolean value) {
+    triageCheckScript = value;
+  }
+  public Boolean getTriageCheckScript() { return triageCheckScript; }
+  protected Boolean triageCheckScript = false;
+    
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Optional file to append a JSONL trace of the time spent in each phase for each span to"
+  )
+  public void setTraceFileUrl(URL value) {
+    traceFileUrl = value;
+  }
+  public URL getTraceFileUrl() { return traceFileUrl; }
+  protected URL traceFileUrl = null;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Fraction of documents to trace if a trace file is given, from 0.0 to 1.0",
+          defaultValue = "1.0"
+  )
+  public void setTraceSampleRate(Double value) {
+    traceSampleRate = value;
+  }
+  public Double getTraceSampleRate() { return traceSampleRate; }
+  protected Double traceSampleRate = 1.0;
+    
   static final Logger logger = Logger.getLogger(TaggerTagMeWS.class);
   
   private static final Pattern patternUrl = 
@@ -248,7 +389,14 @@ public class TaggerTagMeWS
     if (theDocument == null) {
       throw new ExecutionException("No document to process!");
     }
+    // there is no timer: the annotations are added in this thread, while
+    // no other PR is using the documents
+    if (!pending.isEmpty() && 
+            System.currentTimeMillis() - pendingSince >= getBatchMaxLinger()) {
+      flushPending();
+    }
     AnnotationSet outputAS = theDocument.getAnnotations(getOutputAnnotationSet());
+    support.startDocument(getTraceFileUrl(), getTraceSampleRate());
     if (containingType == null || containingType.isEmpty()) {
       annotateText(document,outputAS,0,document.getContent().size());
     } else {
@@ -260,52 +408,82 @@ public class TaggerTagMeWS
         inputAS = theDocument.getAnnotations(inputASName);
       }      
       AnnotationSet containingAnns = inputAS.get(containingType);
-      for(Annotation containingAnn : containingAnns) {
-        annotateText(document,outputAS,gate.Utils.start(containingAnn),gate.Utils.end(containingAnn));
+      if(getMaxConcurrentRequests() > 1 && !isPacking()) {
+        List<long[]> spans = new ArrayList<long[]>();
+        for(Annotation containingAnn : containingAnns) {
+          spans.add(new long[]{gate.Utils.start(containingAnn),gate.Utils.end(containingAnn)});
+        }
+        support.annotateTextsConcurrently(this,theDocument,outputAS,getOutputAnnotationType(),
+                spans,getMaxConcurrentRequests());
+      } else {
+        for(Annotation containingAnn : containingAnns) {
+          annotateText(document,outputAS,gate.Utils.start(containingAnn),gate.Utils.end(containingAnn));
+        }
       }
     }
   }
   
+  // the code shared with the other tagger PRs
+  protected TaggerSupport support = new TaggerSupport();
+  
+  @Override
+  public void cleanup() {
+    support.cleanup();
+    super.cleanup();
+  }
+  
+  /** Counts of the texts which were not sent to the service and why. */
+  public SpanTriage getSpanTriage() {
+    return support.getSpanTriage();
+  }
+  
+  protected boolean passesTriage(String text) {
+    return support.passesTriage(text, getTriageMinLetters(), 
+            getTriageMaxNonLetterRatio(), getTriageCheckScript() ? getLanguageCode() : null);
+  }
+  
   // carry out the actual annotations on the given span of text in the 
   // document.
   protected void annotateText(Document doc, AnnotationSet outputAS, long from, long to) {
-    String text = "";
-    try {
-      text = doc.getContent().getContent(from, to).toString();
-    } catch (InvalidOffsetException ex) {
-      throw new GateRuntimeException("Unexpected offset exception, offsets are "+from+"/"+to);
+    if(isPacking()) {
+      // packed spans are traced when the packed request is sent
+      String text = cleanTweetText(support.getSpanText(doc, from, to, null));
+      if(passesTriage(text)) {
+        addPending(new PendingSpan(doc, outputAS, from, to, text));
+      }
+      return;
     }
-    // send the text to the service and get back the response
-    //System.out.println("Annotating text: "+text);
-    //System.out.println("Starting offset is "+from);
-    
+    support.annotateText(this, doc, outputAS, getOutputAnnotationType(), from, to);
+  }
+  
+  /**
+   * Send the text to the service and return the mentions found.
+   * 
+   * The text is cleaned first if this is tweet mode. The returned mentions
+   * only include those with a rho of at least minRho and have their offsets 
+   * shifted by from, the offset of the text in the document. This does not 
+   * depend on a GATE document and is also used by the {@link BatchTagger}.
+   */
+  @Override
+  public List<Mention> tagText(String text, long from) {
     // NOTE: there is a bug in the TagMe service which causes offset errors
     // if we use the tweet mode and there are certain patterns in the tweet.
     // The approach recommended by Francesco Piccinno is to replace those 
     // patterns by spaces.    
     if(getIsTweet()) {
-      logger.debug("Text before cleaning: >>"+text+"<<");
-      // replace 
-      text = text.replaceAll(patternStringRT3, "    ");
-      text = text.replaceAll(patternStringRT2, "   ");
-      text = text.replaceAll(patternHashTag, " $1");
-      // now replace the remaining patterns by spaces
-      StringBuilder sb = new StringBuilder(text);
-      Matcher m = patternUrl.matcher(text);
-      while(m.find()) {
-        int start = m.start();
-        int end = m.end();
-        sb.replace(start, end, nSpaces(end-start));
-      }
-      m = patternUser.matcher(text);
-      while(m.find()) {
-        int start = m.start();
-        int end = m.end();
-        sb.replace(start, end, nSpaces(end-start));
-      } 
-      text = sb.toString();
-      logger.debug("Text after cleaning:  >>"+text+"<<");
+      long t = System.nanoTime();
+      text = cleanTweetText(text);
+      SpanTrace.addCurrent(SpanTrace.Phase.CLEAN, t);
+    }
+    if(!passesTriage(text)) {
+      return new ArrayList<Mention>();
     }
+    return tagCleanText(text, from);
+  }
+  
+  // Like tagText, but the text has already been cleaned if necessary.
+  protected List<Mention> tagCleanText(String text, long from) {
+    List<Mention> mentions = new ArrayList<Mention>();
     TagMeAnnotation[] tagmeAnnotations = getTagMeAnnotations(text);
     for(TagMeAnnotation tagmeAnn : tagmeAnnotations) {
       if(tagmeAnn.rho >= minrho) {
@@ -318,29 +496,255 @@ public class TaggerTagMeWS
         if (tagmeAnn.title == null) {
           throw new GateRuntimeException("Odd: got a null title from the TagMe service" + tagmeAnn);
         } else {
-          fm.put("inst", "http://dbpedia.org/resource/" + recodeForDbp38(tagmeAnn.title));
-        }
-        try {
-          gate.Utils.addAnn(outputAS, from + tagmeAnn.start, from + tagmeAnn.end, getOutputAnnotationType(), fm);
-        } catch (Exception ex) {
-          System.err.println("Got an exception in document " + doc.getName() + ": " + ex.getLocalizedMessage());
-          ex.printStackTrace(System.err);
-          System.err.println("from=" + from + ", to=" + to + " TagMeAnn=" + tagmeAnn);
+          long t = System.nanoTime();
+          fm.put("inst", getInst(tagmeAnn.id, tagmeAnn.title));
+          SpanTrace.addCurrent(SpanTrace.Phase.RECODE, t);
         }
+        mentions.add(new Mention(from + tagmeAnn.start, from + tagmeAnn.end, fm));
       }
     }
+    return mentions;
+  }
+  
+  // Replace the patterns which confuse the TagMe service in tweet mode 
+  // by spaces, the length of the text is not changed.
+  protected String cleanTweetText(String text) {
+    logger.debug("Text before cleaning: >>"+text+"<<");
+    // replace 
+    text = text.replaceAll(patternStringRT3, "    ");
+    text = text.replaceAll(patternStringRT2, "   ");
+    text = text.replaceAll(patternHashTag, " $1");
+    // now replace the remaining patterns by spaces
+    StringBuilder sb = new StringBuilder(text);
+    Matcher m = patternUrl.matcher(text);
+    while(m.find()) {
+      int start = m.start();
+      int end = m.end();
+      sb.replace(start, end, nSpaces(end-start));
+    }
+    m = patternUser.matcher(text);
+    while(m.find()) {
+      int start = m.start();
+      int end = m.end();
+      sb.replace(start, end, nSpaces(end-start));
+    } 
+    text = sb.toString();
+    logger.debug("Text after cleaning:  >>"+text+"<<");
+    return text;
   }
     
+  // PACKING of several short documents into one request
+  
+  // Separator between the texts of packed spans. Mentions which cross
+  // a separator are dropped.
+  protected static final String PACK_SEPARATOR = "\n\n";
+  
+  protected List<PendingSpan> pending = new ArrayList<PendingSpan>();
+  protected int pendingChars = 0;
+  protected int pendingDocs = 0;
+  protected long pendingSince = 0;
+  protected boolean warnedNotPacking = false;
+  // true between the start and the end of the controller execution, only
+  // then do we know the pending documents get their annotations at the end
+  protected boolean controllerRunning = false;
+  
+  protected static class PendingSpan {
+    Document doc;
+    AnnotationSet outputAS;
+    long from;
+    long to;
+    String text;
+    PendingSpan(Document doc, AnnotationSet outputAS, long from, long to, String text) {
+      this.doc = doc;
+      this.outputAS = outputAS;
+      this.from = from;
+      this.to = to;
+      this.text = text;
+    }
+  }
+  
+  // Packing is only done in tweet mode, if delayed annotations are allowed
+  // and when the documents stay in memory until the end of the corpus: if 
+  // the corpus is in a datastore, a document may get saved and unloaded 
+  // before its annotations are added. Runners which process each document
+  // with a corpus of its own (or none) are not packed either: the 
+  // document is gone before there is anything to pack it with.
+  protected boolean isPacking() {
+    if(!getIsTweet() || getBatchDocuments() == null || getBatchDocuments() <= 1) {
+      return false;
+    }
+    String reason = null;
+    if(!getAllowDelayedAnnotations()) {
+      reason = "allowDelayedAnnotations is false";
+    } else if(!controllerRunning || corpus == null || corpus.size() <= 1) {
+      reason = "only possible for a corpus of several documents processed by a corpus controller";
+    } else if(corpus.getDataStore() != null) {
+      reason = "not possible for a corpus in a datastore";
+    }
+    if(reason != null) {
+      if(!warnedNotPacking) {
+        logger.warn("Not packing documents: "+reason);
+        warnedNotPacking = true;
+      }
+      return false;
+    }
+    return true;
+  }
+  
+  protected void addPending(PendingSpan span) {
+    int maxChars = getPackMaxChars();
+    if(!pending.isEmpty() && 
+            pendingChars + PACK_SEPARATOR.length() + span.text.length() > maxChars) {
+      flushPending();
+    }
+    if(pending.isEmpty()) {
+      pendingSince = System.currentTimeMillis();
+      pendingDocs = 0;
+      pendingChars = 0;
+    } else {
+      pendingChars += PACK_SEPARATOR.length();
+    }
+    if(pending.isEmpty() || pending.get(pending.size()-1).doc != span.doc) {
+      pendingDocs++;
+    }
+    pending.add(span);
+    pendingChars += span.text.length();
+    if(pendingDocs >= getBatchDocuments() || pendingChars >= maxChars) {
+      flushPending();
+    }
+  }
+  
+  // The maximum size of a packed request: batchMaxChars, reduced by the
+  // adaptive limiter if the service is slow or overloaded.
+  protected int getPackMaxChars() {
+    if(getAdaptiveConcurrency()) {
+      double factor = AdaptiveLimiter.getInstance(getTagMeServiceUrl()).getSizeFactor();
+      return (int)Math.max(1, getBatchMaxChars() * factor);
+    }
+    return getBatchMaxChars();
+  }
+  
+  // Send all the pending texts as one request and add the annotations
+  // to the documents they came from. 
+  protected void flushPending() {
+    if(pending.isEmpty()) {
+      return;
+    }
+    List<PendingSpan> spans = pending;
+    pending = new ArrayList<PendingSpan>();
+    pendingChars = 0;
+    pendingDocs = 0;
+    StringBuilder sb = new StringBuilder();
+    long[] starts = new long[spans.size()];
+    for(int i = 0; i < spans.size(); i++) {
+      if(i > 0) {
+        sb.append(PACK_SEPARATOR);
+      }
+      starts[i] = sb.length();
+      sb.append(spans.get(i).text);
+    }
+    logger.debug("Sending "+spans.size()+" packed spans, "+sb.length()+" characters");
+    List<List<Mention>> perSpan = new ArrayList<List<Mention>>();
+    for(int i = 0; i < spans.size(); i++) {
+      perSpan.add(new ArrayList<Mention>());
+    }
+    // a packed request is traced as one span, with the offsets of the 
+    // packed text and the names of all the documents in it
+    List<String> docNames = new ArrayList<String>();
+    for(int i = 0; i < spans.size(); i++) {
+      if(i == 0 || spans.get(i).doc != spans.get(i-1).doc) {
+        docNames.add(spans.get(i).doc.getName());
+      }
+    }
+    SpanTrace trace = support.startPackedTrace(docNames, sb.length(), getTraceSampleRate());
+    final String packed = sb.toString();
+    List<Mention> mentions = support.tagTraced(trace, () -> tagCleanText(packed, 0));
+    long t = System.nanoTime();
+    for(Mention mention : mentions) {
+      int i = Arrays.binarySearch(starts, mention.start);
+      if(i < 0) {
+        i = -i - 2;
+      }
+      PendingSpan span = spans.get(i);
+      long offset = mention.start - starts[i];
+      long length = mention.end - mention.start;
+      if(offset + length > span.text.length()) {
+        logger.debug("Dropping mention which crosses a packing separator: "+mention);
+        continue;
+      }
+      mention.start = span.from + offset;
+      mention.end = mention.start + length;
+      perSpan.get(i).add(mention);
+    }
+    int added = 0;
+    int failed = 0;
+    for(int i = 0; i < spans.size(); i++) {
+      PendingSpan span = spans.get(i);
+      int spanFailed = support.addMentions(span.doc, span.outputAS, getOutputAnnotationType(), 
+              span.from, span.to, perSpan.get(i));
+      added += perSpan.get(i).size() - spanFailed;
+      failed += spanFailed;
+    }
+    if(trace != null) {
+      trace.add(SpanTrace.Phase.ADD_ANN, t);
+      trace.annotations = added;
+      trace.offsetErrors = failed;
+      support.finishTrace(trace);
+    }
+  }
+  
+  @Override
+  public void controllerExecutionStarted(Controller c) throws ExecutionException {
+    pending.clear();
+    pendingChars = 0;
+    pendingDocs = 0;
+    warnedNotPacking = false;
+    controllerRunning = true;
+    support.getSpanTriage().reset();
+  }
+
+  @Override
+  public void controllerExecutionFinished(Controller c) throws ExecutionException {
+    controllerRunning = false;
+    flushPending();
+    logger.info(support.getSpanTriage());
+  }
+
+  @Override
+  public void controllerExecutionAborted(Controller c, Throwable t) throws ExecutionException {
+    controllerRunning = false;
+    // the documents processed so far are still there, so try to give them 
+    // their annotations
+    try {
+      flushPending();
+    } catch (GateRuntimeException ex) {
+      logger.error("Could not send the pending packed documents after the controller was aborted", ex);
+    }
+  }
+  
+  // Return the DBpedia URI for the annotation: from the page id map if
+  // there is one and it contains the id, otherwise made from the title.
+  protected String getInst(int id, String title) {
+    return support.getInst(getPageIdUriMapUrl(), id, title);
+  }
+  
   protected TagMeAnnotation[] getTagMeAnnotations(String text) {
     String str = retrieveServerResponse(text);
-    return convertStringToTagMeAnnotations02(str);
+    long t = System.nanoTime();
+    TagMeAnnotation[] ret = convertStringToTagMeAnnotations02(str);
+    SpanTrace.addCurrent(SpanTrace.Phase.PARSE, t);
+    return ret;
   }
   
   protected String retrieveServerResponse(String text) {
-    Request req = Request.Post(getTagMeServiceUrl().toString());
-    
-    req.addHeader("Content-Type","application/x-www-form-urlencoded");
-    req.bodyForm(Form.form()
+    long t = System.nanoTime();
+    URI uri;
+    try {
+      uri = getTagMeServiceUrl().toURI();
+    } catch (URISyntaxException ex) {
+      throw new GateRuntimeException("Could not create URI for the request",ex);
+    }
+    List<NameValuePair> form = Form.form()
             .add("text", text)
             .add("gcube-token",getApiKey())
             .add("lang",getLanguageCode())
@@ -350,21 +754,12 @@ public class TaggerTagMeWS
             .add("include_all_spots","false")
             .add("long_text",getLongText().toString())
             .add("epsilon",getEpsilon().toString())
-            .build(),Consts.UTF_8);    
-    logger.debug("Request is "+req);
-    Response res = null;
-    try {
-      res = req.execute();
-    } catch (Exception ex) {
-      throw new GateRuntimeException("Problem executing HTTP request: "+req,ex);
-    } 
-    Content cont = null;
-    try {
-      cont = res.returnContent();
-    } catch (Exception ex) {
-      throw new GateRuntimeException("Problem getting HTTP response content: "+res,ex);
-    } 
-    String ret = cont.asString();
+            .build();
+    SpanTrace.addCurrent(SpanTrace.Phase.BUILD, t);
+    t = System.nanoTime();
+    String ret = TaggerSupport.getServiceTransport(getTransport(), 
+            getAdaptiveConcurrency(), getTagMeServiceUrl()).post(uri, form);
+    SpanTrace.addCurrent(SpanTrace.Phase.NETWORK, t);
     logger.debug("TagMe server response "+ret);
     return ret;
   }
@@ -23,26 +23,27 @@ package gate.tagger.tagme;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import gate.Annotation;
 import gate.AnnotationSet;
+import gate.Controller;
 import gate.Document;
 import gate.Factory;
 import gate.FeatureMap;
 import gate.creole.AbstractLanguageAnalyser;
+import gate.creole.ControllerAwarePR;
 import gate.creole.ExecutionException;
 import gate.creole.metadata.CreoleParameter;
 import gate.creole.metadata.CreoleResource;
 import gate.creole.metadata.Optional;
 import gate.creole.metadata.RunTime;
 import gate.util.GateRuntimeException;
-import gate.util.InvalidOffsetException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 import org.apache.commons.lang.StringEscapeUtils;
-import org.apache.http.client.fluent.Content;
-
-import org.apache.http.client.fluent.Request;
-import org.apache.http.client.fluent.Response;
+import org.apache.http.NameValuePair;
+import org.apache.http.client.fluent.Form;
 import org.apache.http.client.utils.URIBuilder;
 import org.apache.log4j.Logger;
 
@@ -55,7 +56,7 @@ import org.apache.log4j.Logger;
         helpURL="https://github.com/GateNLP/gateplugin-Tagger_TagMe/wiki/Tagger_WAT"
 )
 public class TaggerWatWS  
-  extends AbstractLanguageAnalyser  {
+  extends AbstractLanguageAnalyser implements ControllerAwarePR, TextTagger {
 
   private static final long serialVersionUID = 5322455999996492868L;
 
@@ -173,6 +174,116 @@ public class TaggerWatWS
   public Double getMinRho() { return minrho; }
   protected double minrho = 0.2;
     
+  @RunTime
+  @CreoleParameter(
+          comment = "HTTP transport: HTTP1 (Apache HttpClient) or HTTP2 (JDK client, multiplexed, falls back to HTTP1 if not supported by the server)",
+          defaultValue = "HTTP1"
+  )
+  public void setTransport(TransportType value) {
+    transport = value;
+  }
+  public TransportType getTransport() { return transport; }
+  protected TransportType transport = TransportType.HTTP1;
+    
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Optional page id to DBpedia URI map file (see PageIdUriMap), used for inst if the tagMeId is found"
+  )
+  public void setPageIdUriMapUrl(URL value) {
+    pageIdUriMapUrl = value;
+  }
+  public URL getPageIdUriMapUrl() { return pageIdUriMapUrl; }
+  protected URL pageIdUriMapUrl = null;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Maximum number of containing annotations of a document sent to the service at the same time",
+          defaultValue = "1"
+  )
+  public void setMaxConcurrentRequests(Integer value) {
+    maxConcurrentRequests = value;
+  }
+  public Integer getMaxConcurrentRequests() { return maxConcurrentRequests; }
+  protected Integer maxConcurrentRequests = 1;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Adapt the number of requests in flight (and request size where requests are combined) to the latency and errors of the service",
+          defaultValue = "false"
+  )
+  public void setAdaptiveConcurrency(Boolean value) {
+    adaptiveConcurrency = value;
+  }
+  public Boolean getAdaptiveConcurrency() { return adaptiveConcurrency; }
+  protected Boolean adaptiveConcurrency = false;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Maximum length of the URL of a GET request, including the URL-encoded text: longer requests are sent as POST requests, 0 to always use POST",
+          defaultValue = "2000"
+  )
+  public void setMaxGetUrlLength(Integer value) {
+    maxGetUrlLength = value;
+  }
+  public Integer getMaxGetUrlLength() { return maxGetUrlLength; }
+  protected Integer maxGetUrlLength = 2000;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Texts with fewer letters are not sent to the service, 0 to not check",
+          defaultValue = "0"
+  )
+  public void setTriageMinLetters(Integer value) {
+    triageMinLetters = value;
+  }
+  public Integer getTriageMinLetters() { return triageMinLetters; }
+  protected Integer triageMinLetters = 0;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Texts where the ratio of non-letters to all non-whitespace characters is higher are not sent to the service, 1.0 to not check",
+          defaultValue = "1.0"
+  )
+  public void setTriageMaxNonLetterRatio(Double value) {
+    triageMaxNonLetterRatio = value;
+  }
+  public Double getTriageMaxNonLetterRatio() { return triageMaxNonLetterRatio; }
+  protected Double triageMaxNonLetterRatio = 1.0;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "If true, texts where most letters are not in the script of the language are not sent to the service",
+          defaultValue = "false"
+  )
+  public void setTriageCheckScript(Boolean value) {
+    triageCheckScript = value;
+  }
+  public Boolean getTriageCheckScript() { return triageCheckScript; }
+  protected Boolean triageCheckScript = false;
+    
+  @RunTime
+  @Optional
+  @CreoleParameter(
+          comment = "Optional file to append a JSONL trace of the time spent in each phase for each span to"
+  )
+  public void setTraceFileUrl(URL value) {
+    traceFileUrl = value;
+  }
+  public URL getTraceFileUrl() { return traceFileUrl; }
+  protected URL traceFileUrl = null;
+    
+  @RunTime
+  @CreoleParameter(
+          comment = "Fraction of documents to trace if a trace file is given, from 0.0 to 1.0",
+          defaultValue = "1.0"
+  )
+  public void setTraceSampleRate(Double value) {
+    traceSampleRate = value;
+  }
+  public Double getTraceSampleRate() { return traceSampleRate; }
+  protected Double traceSampleRate = 1.0;
+    
   static final Logger logger = Logger.getLogger(TaggerWatWS.class);
   
   private static final Pattern patternUrl = 
@@ -203,6 +314,7 @@ public class TaggerWatWS
       throw new ExecutionException("No document to process!");
     }
     AnnotationSet outputAS = theDocument.getAnnotations(getOutputAnnotationSet());
+    support.startDocument(getTraceFileUrl(), getTraceSampleRate());
     if (containingType == null || containingType.isEmpty()) {
       annotateText(document,outputAS,0,document.getContent().size());
     } else {
@@ -214,25 +326,59 @@ public class TaggerWatWS
         inputAS = theDocument.getAnnotations(inputASName);
       }      
       AnnotationSet containingAnns = inputAS.get(containingType);
-      for(Annotation containingAnn : containingAnns) {
-        annotateText(document,outputAS,gate.Utils.start(containingAnn),gate.Utils.end(containingAnn));
+      if(getMaxConcurrentRequests() > 1) {
+        List<long[]> spans = new ArrayList<long[]>();
+        for(Annotation containingAnn : containingAnns) {
+          spans.add(new long[]{gate.Utils.start(containingAnn),gate.Utils.end(containingAnn)});
+        }
+        support.annotateTextsConcurrently(this,theDocument,outputAS,getOutputAnnotationType(),
+                spans,getMaxConcurrentRequests());
+      } else {
+        for(Annotation containingAnn : containingAnns) {
+          annotateText(document,outputAS,gate.Utils.start(containingAnn),gate.Utils.end(containingAnn));
+        }
       }
     }
   }
   
+  // the code shared with the other tagger PRs
+  protected TaggerSupport support = new TaggerSupport();
+  
+  @Override
+  public void cleanup() {
+    support.cleanup();
+    super.cleanup();
+  }
+  
+  /** Counts of the texts which were not sent to the service and why. */
+  public SpanTriage getSpanTriage() {
+    return support.getSpanTriage();
+  }
+  
+  protected boolean passesTriage(String text) {
+    return support.passesTriage(text, getTriageMinLetters(), 
+            getTriageMaxNonLetterRatio(), getTriageCheckScript() ? getLanguageCode() : null);
+  }
+  
   // carry out the actual annotations on the given span of text in the 
   // document.
   protected void annotateText(Document doc, AnnotationSet outputAS, long from, long to) {
-    String text = "";
-    try {
-      text = doc.getContent().getContent(from, to).toString();
-    } catch (InvalidOffsetException ex) {
-      throw new GateRuntimeException("Unexpected offset exception, offsets are "+from+"/"+to);
+    support.annotateText(this, doc, outputAS, getOutputAnnotationType(), from, to);
+  }
+  
+  /**
+   * Send the text to the service and return the mentions found.
+   * 
+   * Only mentions with a rho of at least minRho are returned, their offsets
+   * are shifted by from, the offset of the text in the document. This does 
+   * not depend on a GATE document and is also used by the {@link BatchTagger}.
+   */
+  @Override
+  public List<Mention> tagText(String text, long from) {
+    List<Mention> mentions = new ArrayList<Mention>();
+    if(!passesTriage(text)) {
+      return mentions;
     }
-    // send the text to the service and get back the response
-    // System.out.println("DEBUG: Annotating text from="+from+", to="+to+", text="+text);
-    //System.out.println("Starting offset is "+from);
-    
     WatAnnotation[] tagmeAnnotations = getTagMeAnnotations(text);
     for(WatAnnotation tagmeAnn : tagmeAnnotations) {
         if(tagmeAnn.rho < minrho) {
@@ -246,25 +392,51 @@ public class TaggerWatWS
         if (tagmeAnn.title == null) {
           throw new GateRuntimeException("Odd: got a null title from the TagMe service" + tagmeAnn);
         } else {
-          fm.put("inst", "http://dbpedia.org/resource/" + recodeForDbp38(tagmeAnn.title));
-        }
-        try {
-          gate.Utils.addAnn(outputAS, from + tagmeAnn.start, from + tagmeAnn.end, getOutputAnnotationType(), fm);
-        } catch (Exception ex) {
-          System.err.println("Got an exception in document " + doc.getName() + ": " + ex.getLocalizedMessage());
-          ex.printStackTrace(System.err);
-          System.err.println("from=" + from + ", to=" + to + " TagMeAnn=" + tagmeAnn);
+          long t = System.nanoTime();
+          fm.put("inst", getInst(tagmeAnn.id, tagmeAnn.title));
+          SpanTrace.addCurrent(SpanTrace.Phase.RECODE, t);
         }
-      
+        mentions.add(new Mention(from + tagmeAnn.start, from + tagmeAnn.end, fm));
     }
+    return mentions;
   }
     
+  // Return the DBpedia URI for the annotation: from the page id map if
+  // there is one and it contains the id, otherwise made from the title.
+  protected String getInst(int id, String title) {
+    return support.getInst(getPageIdUriMapUrl(), id, title);
+  }
+  
+  @Override
+  public void controllerExecutionStarted(Controller c) throws ExecutionException {
+    support.getSpanTriage().reset();
+  }
+
+  @Override
+  public void controllerExecutionFinished(Controller c) throws ExecutionException {
+    logger.info(support.getSpanTriage());
+  }
+
+  @Override
+  public void controllerExecutionAborted(Controller c, Throwable t) throws ExecutionException {
+    logger.info(support.getSpanTriage());
+  }
+  
   protected WatAnnotation[] getTagMeAnnotations(String text) {
     String str = retrieveServerResponse(text);
-    return convertStringToTagMeAnnotations02(str);
+    long t = System.nanoTime();
+    WatAnnotation[] ret = convertStringToTagMeAnnotations02(str);
+    SpanTrace.addCurrent(SpanTrace.Phase.PARSE, t);
+    return ret;
   }
   
+  // Texts are sent in the query string of a GET request, unless the URL
+  // with the URL-encoded text would be longer than maxGetUrlLength: then 
+  // they are sent in the body of a POST request, to avoid URL length limits
+  // and keep the text out of access logs.
   protected String retrieveServerResponse(String text) {
+    long t = System.nanoTime();
+    String ret;
     URI uri;
     try {
       uri = new URIBuilder(getTagMeServiceUrl().toURI())
@@ -275,23 +447,29 @@ public class TaggerWatWS
     } catch (URISyntaxException ex) {
       throw new GateRuntimeException("Could not create URI for the request",ex);
     }
-        
-    //System.err.println("DEBUG: WAT URL="+uri);
-    Request req = Request.Get(uri);
-    
-    Response res = null;
-    try {
-      res = req.execute();
-    } catch (Exception ex) {
-      throw new GateRuntimeException("Problem executing HTTP request: "+req,ex);
-    } 
-    Content cont = null;
-    try {
-      cont = res.returnContent();
-    } catch (Exception ex) {
-      throw new GateRuntimeException("Problem getting HTTP response content: "+res,ex);
-    } 
-    String ret = cont.asString();
+    if(uri.toString().length() > getMaxGetUrlLength()) {
+      try {
+        uri = getTagMeServiceUrl().toURI();
+      } catch (URISyntaxException ex) {
+        throw new GateRuntimeException("Could not create URI for the request",ex);
+      }
+      List<NameValuePair> form = Form.form()
+              .add("text", text)
+              .add("gcube-token",getApiKey())
+              .add("lang",getLanguageCode())
+              .build();
+      SpanTrace.addCurrent(SpanTrace.Phase.BUILD, t);
+      t = System.nanoTime();
+      ret = TaggerSupport.getServiceTransport(getTransport(), 
+              getAdaptiveConcurrency(), getTagMeServiceUrl()).post(uri, form);
+    } else {
+      //System.err.println("DEBUG: WAT URL="+uri);
+      SpanTrace.addCurrent(SpanTrace.Phase.BUILD, t);
+      t = System.nanoTime();
+      ret = TaggerSupport.getServiceTransport(getTransport(), 
+              getAdaptiveConcurrency(), getTagMeServiceUrl()).get(uri);
+    }
+    SpanTrace.addCurrent(SpanTrace.Phase.NETWORK, t);
     logger.debug("WAT server response "+ret);
     return ret;
   }
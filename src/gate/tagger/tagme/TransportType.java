@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2014-2018 The University Of Sheffield.
+ *
+ * This file is part of gateplugin-Tagger_TagMe 
+ * (see https://github.com/GateNLP/gateplugin-Tagger_TagMe).
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 2.1 of the License, or
+ * (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this software. If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package gate.tagger.tagme;
+
+/**
+ * The HTTP transports which can be selected for the taggers.
+ */
+public enum TransportType {
+  /** Apache HttpClient, HTTP/1.1 with one connection per request in flight. */
+  HTTP1,
+  /** JDK HttpClient using HTTP/2, requests are multiplexed over shared connections. */
+  HTTP2;
+  
+  public ServiceTransport getTransport() {
+    if(this == HTTP2) {
+      return Http2Transport.getInstance();
+    } else {
+      return ApacheTransport.getInstance();
+    }
+  }
+}